@@ -22,8 +22,18 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Storage interface.
@@ -64,6 +74,116 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides stream (possibly empty) of {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * The stream is sequential, {@link Stream#parallel()} lets storages scan parts of the range concurrently.
+     * The stream should be closed unless it is read till the end.
+     *
+     * N.B. The default implementation wraps {@link #range(ByteBuffer, ByteBuffer)}, which is read by one thread.
+     */
+    @NotNull
+    default Stream<Record> rangeStream(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final int characteristics = Spliterator.ORDERED | Spliterator.SORTED
+                | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(range(from, to), characteristics), false);
+    }
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s whose keys start with given prefix
+     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     * The iterator stops as soon as keys leave the prefix.
+     */
+    @NotNull
+    default Iterator<Record> prefix(@NotNull ByteBuffer prefix) throws IOException {
+        return range(prefix, prefixEnd(prefix));
+    }
+
+    /**
+     * Finds the smallest key greater than every key with given prefix.
+     *
+     * @param prefix prefix of keys
+     * @return the bound or null if keys with the prefix go up to the end
+     */
+    @Nullable
+    static ByteBuffer prefixEnd(@NotNull ByteBuffer prefix) {
+        // Bytes are compared as signed, so the last byte which is not the greatest one is incremented
+        for (int i = prefix.limit() - 1; i >= prefix.position(); i--) {
+            final byte last = prefix.get(i);
+            if (last != Byte.MAX_VALUE) {
+                final ByteBuffer end = ByteBuffer.allocate(i - prefix.position() + 1);
+                end.put(prefix.duplicate().limit(i)).put((byte) (last + 1));
+                return end.flip();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> descendingIterator(@NotNull ByteBuffer from) throws IOException {
+        return descendingRange(from, null);
+    }
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * down to given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     * Null "from" starts from the largest key, null "to" goes down to the smallest one.
+     *
+     * N.B. The default implementation scans the range forward and keeps its records in memory.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @Nullable ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+
+        final Deque<Record> records = new ArrayDeque<>();
+        final Iterator<Record> ascending = iterator(to == null ? ByteBuffer.allocate(0) : to);
+        while (ascending.hasNext()) {
+            final Record record = ascending.next();
+            if (from != null && record.getKey().compareTo(from) > 0) {
+                break;
+            }
+            if (to == null || !record.getKey().equals(to)) {
+                records.push(record);
+            }
+        }
+        return records.iterator();
+    }
+
+    /**
+     * Provides iterator (possibly empty) over keys of {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order.
+     *
+     * N.B. The default implementation reads whole records,
+     * storages may list keys without reading values.
+     */
+    @NotNull
+    default Iterator<ByteBuffer> keys(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Iterator<Record> records = range(from, to);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                return records.next().getKey();
+            }
+        };
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -84,6 +204,61 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Obtains values of many keys at once.
+     *
+     * N.B. The default implementation calls {@link #get(ByteBuffer)} for every key.
+     *
+     * @return values in order of the keys, null for keys without records
+     */
+    @NotNull
+    default List<ByteBuffer> multiGet(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final List<ByteBuffer> values = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            try {
+                values.add(get(key));
+            } catch (NoSuchElementException e) {
+                values.add(null);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Obtains value of given key without waiting for disk on the calling thread.
+     * The future fails with {@link NoSuchElementException} if there is no such record.
+     *
+     * N.B. The default implementation calls {@link #get(ByteBuffer)} in place.
+     */
+    @NotNull
+    default CompletableFuture<ByteBuffer> getAsync(@NotNull ByteBuffer key) {
+        try {
+            return CompletableFuture.completedFuture(get(key));
+        } catch (IOException | NoSuchElementException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Reads {@link Record}s starting at "from" key (inclusive) until given "to" key (exclusive)
+     * into a list in <b>ascending</b> order without waiting for disk on the calling thread.
+     * The whole range is kept in memory, so it is meant for bounded batches.
+     *
+     * N.B. The default implementation reads {@link #range(ByteBuffer, ByteBuffer)} in place.
+     */
+    @NotNull
+    default CompletableFuture<List<Record>> rangeAsync(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) {
+        try {
+            final List<Record> records = new ArrayList<>();
+            range(from, to).forEachRemaining(records::add);
+            return CompletableFuture.completedFuture(records);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -96,6 +271,32 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies all operations of the batch in order.
+     * N.B. The default implementation applies them one by one,
+     * implementations should override it to make the batch atomic.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            final ByteBuffer value = operation.getValue();
+            if (value == null) {
+                remove(operation.getKey());
+            } else {
+                upsert(operation.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Takes a consistent read-only view of the storage, which must be closed after use.
+     *
+     * @throws UnsupportedOperationException if the implementation has no snapshots
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Perform compaction
      */
@@ -17,7 +17,9 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.pdaniil.Config;
 import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.ShardedDAO;
 
 import java.io.File;
 import java.io.IOException;
@@ -42,6 +44,28 @@ public final class DAOFactory {
      */
     @NotNull
     static DAO create(@NotNull final File data) throws IOException {
+        checkEnvironment(data);
+
+        return new MyDAO(data.toPath(), MAX_HEAP);
+    }
+
+    /**
+     * Construct a {@link DAO} instance which spreads keys over independent shards by hash.
+     *
+     * @param data local disk folder to persist the data to
+     * @param shards count of shards, must be the same every time the folder is opened
+     * @return a storage instance
+     */
+    @NotNull
+    static DAO create(
+            @NotNull final File data,
+            final int shards) throws IOException {
+        checkEnvironment(data);
+
+        return new ShardedDAO(data.toPath(), MAX_HEAP, shards, Config.DEFAULT);
+    }
+
+    private static void checkEnvironment(@NotNull final File data) {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -53,7 +77,5 @@ public final class DAOFactory {
         if (!data.isDirectory()) {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
-
-        return new MyDAO(data.toPath(), MAX_HEAP);
     }
 }
@@ -0,0 +1,89 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered set of upserts and removes applied by {@link DAO#write(WriteBatch)} as a single unit.
+ * Later operations on the same key win.
+ */
+public final class WriteBatch {
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Adds upsert of the key.
+     *
+     * @param key key to upsert
+     * @param value value to upsert
+     * @return this batch
+     */
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        operations.add(new Operation(key.duplicate(), value.duplicate()));
+        return this;
+    }
+
+    /**
+     * Adds remove of the key.
+     *
+     * @param key key to remove
+     * @return this batch
+     */
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        operations.add(new Operation(key.duplicate(), null));
+        return this;
+    }
+
+    @NotNull
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Single upsert or remove.
+     */
+    public static final class Operation {
+        private final ByteBuffer key;
+        @Nullable
+        private final ByteBuffer value;
+
+        private Operation(
+                @NotNull final ByteBuffer key,
+                @Nullable final ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @NotNull
+        public ByteBuffer getKey() {
+            return key.duplicate();
+        }
+
+        /**
+         * Returns value to upsert or {@code null} for remove.
+         */
+        @Nullable
+        public ByteBuffer getValue() {
+            return value == null ? null : value.duplicate();
+        }
+
+        public boolean isRemove() {
+            return value == null;
+        }
+    }
+}
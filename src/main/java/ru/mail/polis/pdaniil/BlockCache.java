@@ -0,0 +1,243 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of data blocks of SSTables read through {@link java.nio.channels.FileChannel},
+ * shared by all tables of the storage and limited by total size of blocks.
+ *
+ * <p>Eviction is a two-queue CLOCK. New blocks wait in a probation queue and are dropped
+ * unless they are hit there, hit blocks are moved to the protected CLOCK.
+ * A long scan only churns the probation queue, so it doesn't wash hot blocks out.
+ * Lookups take no locks, eviction is done by one writer at a time.</p>
+ */
+public final class BlockCache {
+
+    private static final AtomicLong TABLE_IDS = new AtomicLong();
+    private static final int MAX_FREQUENCY = 3;
+    /* Share of capacity given to blocks which were not hit yet */
+    private static final int PROBATION_SHARE = 4;
+
+    private final long capacity;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> probation = new ConcurrentLinkedQueue<>();
+    /* Guarded by evictionLock */
+    private final Queue<Entry> protectedClock = new ArrayDeque<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong probationSize = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BlockCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Provides key of a new table in caches.
+     * Compaction result may replace a table of the same version,
+     * so blocks are cached by the opened table rather than by its version.
+     */
+    static long nextTableId() {
+        return TABLE_IDS.incrementAndGet();
+    }
+
+    /**
+     * Finds cached block.
+     *
+     * @param table id of the table, see {@link #nextTableId()}
+     * @param offset offset of the block in the table file
+     * @return read-only block or null if it is not cached
+     */
+    @Nullable
+    ByteBuffer get(final long table, final long offset) {
+        if (capacity == 0) {
+            return null;
+        }
+
+        final Entry entry = entries.get(new Key(table, offset));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (entry.frequency < MAX_FREQUENCY) {
+            entry.frequency++;
+        }
+        return entry.block.duplicate();
+    }
+
+    /**
+     * Caches block which was just read.
+     *
+     * @param table id of the table, see {@link #nextTableId()}
+     * @param offset offset of the block in the table file
+     * @param block block contents, must not be changed afterwards
+     * @return read-only view of the block
+     */
+    ByteBuffer put(final long table, final long offset, final ByteBuffer block) {
+        final ByteBuffer readOnly = block.asReadOnlyBuffer();
+        final int blockSize = readOnly.remaining();
+        if (blockSize > capacity / PROBATION_SHARE) {
+            return readOnly;
+        }
+
+        final Entry entry = new Entry(new Key(table, offset), readOnly);
+        if (entries.putIfAbsent(entry.key, entry) != null) {
+            return readOnly;
+        }
+        probationSize.addAndGet(blockSize);
+        probation.add(entry);
+        if (size.addAndGet(blockSize) > capacity) {
+            evict();
+        }
+        return readOnly.duplicate();
+    }
+
+    /**
+     * Drops blocks of the closed table.
+     *
+     * @param table id of the table
+     */
+    void invalidate(final long table) {
+        if (capacity == 0) {
+            return;
+        }
+        for (final Entry entry : entries.values()) {
+            if (entry.key.table == table) {
+                remove(entry);
+            }
+        }
+        // Entries stay in queues until eviction gets to them
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            // Another writer is evicting
+            return;
+        }
+        try {
+            while (size.get() > capacity) {
+                if (probationSize.get() > capacity / PROBATION_SHARE || protectedClock.isEmpty()) {
+                    final Entry entry = probation.poll();
+                    if (entry == null) {
+                        return;
+                    }
+                    probationSize.addAndGet(-entry.size());
+                    if (entry.frequency > 0 && entries.get(entry.key) == entry) {
+                        entry.frequency--;
+                        protectedClock.add(entry);
+                    } else if (remove(entry)) {
+                        evictions.increment();
+                    }
+                } else {
+                    final Entry entry = protectedClock.remove();
+                    if (entry.frequency > 0 && entries.get(entry.key) == entry) {
+                        entry.frequency--;
+                        protectedClock.add(entry);
+                    } else if (remove(entry)) {
+                        evictions.increment();
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean remove(final Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            size.addAndGet(-entry.size());
+            return true;
+        }
+        return false;
+    }
+
+    /** Byte budget of the cache, 0 means no caching. */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** Total size of cached blocks. */
+    public long getSize() {
+        return size.get();
+    }
+
+    /** Reads of blocks found in the cache. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Reads of blocks which had to go to the file. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Blocks dropped to fit into the budget. */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size " + getSize() + " of " + getCapacity()
+                + ", hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions();
+    }
+
+    private static final class Key {
+
+        private final long table;
+        private final long offset;
+
+        Key(final long table, final long offset) {
+            this.table = table;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return table == key.table && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(table) * 31 + Long.hashCode(offset);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Key key;
+        private final ByteBuffer block;
+        /* Hits since the last pass of the clock, updates may race and get lost */
+        private volatile int frequency;
+
+        Entry(final Key key, final ByteBuffer block) {
+            this.key = key;
+            this.block = block;
+        }
+
+        int size() {
+            return block.remaining();
+        }
+    }
+}
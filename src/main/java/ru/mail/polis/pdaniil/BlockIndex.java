@@ -0,0 +1,187 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse index of SSTable with a separator key and offset of every data block.
+ * It is small enough to be kept in memory, so a lookup reads only one block.
+ *
+ * <p>Separator of a block is greater than keys of the previous blocks and not greater
+ * than the first key of the block. The shortest such prefix of the first key is taken,
+ * so huge keys don't bloat the index.</p>
+ *
+ * <p>Serialized form:
+ * - blockCount (4 bytes)</p>
+ *
+ * <p>For every block:
+ * - offset (8 bytes)
+ * - keySize (4 bytes)
+ * - separator key ("keySize" bytes)</p>
+ */
+final class BlockIndex {
+
+    private final long[] offsets;
+    private final ByteBuffer[] keys;
+    /* Packed first bytes of separators, searches compare whole separators only when they are equal */
+    private final long[] prefixes;
+    private final long dataEnd;
+
+    private BlockIndex(final long[] offsets, final ByteBuffer[] keys, final long dataEnd) {
+        this.offsets = offsets;
+        this.keys = keys;
+        this.dataEnd = dataEnd;
+        this.prefixes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            prefixes[i] = KeyPrefix.of(keys[i]);
+        }
+    }
+
+    int getBlockCount() {
+        return offsets.length;
+    }
+
+    long getOffset(final int block) {
+        return offsets[block];
+    }
+
+    /** Separator key of the block, see the class description. */
+    ByteBuffer getKey(final int block) {
+        return keys[block].duplicate();
+    }
+
+    int getSize(final int block) {
+        final long end = block + 1 < offsets.length ? offsets[block + 1] : dataEnd;
+        return (int) (end - offsets[block]);
+    }
+
+    /**
+     * Finds the block which may contain the key.
+     *
+     * @param key key to find
+     * @return the last block with separator not greater than the key
+     */
+    int floor(final ByteBuffer key) {
+        return floor(key, KeyPrefix.of(key), 0, keys.length - 1);
+    }
+
+    /**
+     * Finds the block which may contain the key, searching forward from the block of a smaller key.
+     * The distance is galloped first, so ascending keys cost logarithm of distance between them.
+     *
+     * @param key key to find
+     * @param from the block found for a smaller key, or -1
+     * @return the last block with separator not greater than the key
+     */
+    int floor(final ByteBuffer key, final int from) {
+        final long keyPrefix = KeyPrefix.of(key);
+        int low = Math.max(from, 0);
+        int step = 1;
+        while (low + step < keys.length && compare(low + step, key, keyPrefix) <= 0) {
+            low += step;
+            step <<= 1;
+        }
+        return floor(key, keyPrefix, low, Math.min(low + step, keys.length) - 1);
+    }
+
+    private int floor(final ByteBuffer key, final long keyPrefix, final int from, final int to) {
+        int low = from;
+        int high = to;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int compare = compare(mid, key, keyPrefix);
+
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private int compare(final int block, final ByteBuffer key, final long keyPrefix) {
+        final int compare = KeyPrefix.compare(prefixes[block], keyPrefix);
+        return compare == 0 ? keys[block].compareTo(key) : compare;
+    }
+
+    /**
+     * Reads index written by {@link Builder#serialize()}.
+     *
+     * @param buffer serialized index, keys of the index are slices of it
+     * @param dataEnd end of the last block
+     * @return index
+     */
+    static BlockIndex deserialize(final ByteBuffer buffer, final long dataEnd) {
+        final int blockCount = buffer.getInt();
+        final long[] offsets = new long[blockCount];
+        final ByteBuffer[] keys = new ByteBuffer[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            offsets[i] = buffer.getLong();
+            final int keySize = buffer.getInt();
+            final ByteBuffer key = buffer.slice();
+            key.limit(keySize);
+            keys[i] = key;
+            buffer.position(buffer.position() + keySize);
+        }
+        return new BlockIndex(offsets, keys, dataEnd);
+    }
+
+    /**
+     * Collects blocks while the table is written.
+     */
+    static final class Builder {
+
+        private static final int INITIAL_CAPACITY = 4096;
+
+        private ByteBuffer entries = ByteBuffer.allocate(INITIAL_CAPACITY);
+        private int blockCount;
+
+        /**
+         * Adds the next block.
+         *
+         * @param previousKey the last key of the previous block, null for the first block
+         * @param firstKey the first key of the block
+         * @param offset offset of the block in the table file
+         */
+        void add(@Nullable final ByteBuffer previousKey, final ByteBuffer firstKey, final long offset) {
+            final ByteBuffer separator = firstKey.duplicate();
+            separator.limit(separator.position() + separatorSize(previousKey, firstKey));
+
+            final int entrySize = Long.BYTES + Integer.BYTES + separator.remaining();
+            if (entries.remaining() < entrySize) {
+                final int capacity = Math.max(entries.capacity() * 2, entries.position() + entrySize);
+                final ByteBuffer grown = ByteBuffer.allocate(capacity);
+                entries.flip();
+                entries = grown.put(entries);
+            }
+            entries.putLong(offset);
+            entries.putInt(separator.remaining());
+            entries.put(separator);
+            blockCount++;
+        }
+
+        /**
+         * Finds length of the shortest prefix of the key which is greater than the previous key.
+         */
+        private static int separatorSize(@Nullable final ByteBuffer previousKey, final ByteBuffer key) {
+            if (previousKey == null) {
+                return 0;
+            }
+            final int mismatch = previousKey.mismatch(key);
+            // Keys are unique, so they differ at the mismatch or the previous key is a prefix of the key
+            return mismatch + 1;
+        }
+
+        ByteBuffer serialize() {
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + entries.position());
+            buffer.putInt(blockCount);
+            buffer.put(entries.duplicate().flip());
+            return buffer.flip();
+        }
+    }
+}
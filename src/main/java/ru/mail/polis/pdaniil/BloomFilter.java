@@ -0,0 +1,98 @@
+package ru.mail.polis.pdaniil;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over keys of SSTable.
+ *
+ * <p>Bit positions are derived from one 64-bit hash of the key by double hashing,
+ * so a lookup hashes the key once for all tables.</p>
+ *
+ * <p>Serialized form:
+ * - hashCount (4 bytes)
+ * - bits (8 bytes per 64 bits)</p>
+ */
+final class BloomFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAX_HASH_COUNT = 30;
+
+    private final int hashCount;
+    private final long[] bits;
+
+    private BloomFilter(final int hashCount, final long[] bits) {
+        this.hashCount = hashCount;
+        this.bits = bits;
+    }
+
+    static long hash(final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    /**
+     * Creates empty filter, keys are added as they are written.
+     * More keys than expected only make false positives more frequent.
+     *
+     * @param expectedKeys count of keys or an upper bound of it
+     * @param bitsPerKey filter size per key
+     * @return filter
+     */
+    static BloomFilter create(final long expectedKeys, final int bitsPerKey) {
+        final long bitCount = Math.max(Long.SIZE, expectedKeys * bitsPerKey);
+        final long[] bits = new long[(int) ((bitCount + Long.SIZE - 1) / Long.SIZE)];
+        // Optimal count of hash functions is bitsPerKey * ln(2)
+        final int hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(hashCount, bits);
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param hash hash of the key, see {@link #hash(ByteBuffer)}
+     */
+    void add(final long hash) {
+        final long bitCount = (long) bits.length * Long.SIZE;
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks if the key may be in the table.
+     *
+     * @param hash hash of the key, see {@link #hash(ByteBuffer)}
+     * @return false if the key is definitely absent
+     */
+    boolean mightContain(final long hash) {
+        final long bitCount = (long) bits.length * Long.SIZE;
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ByteBuffer serialize() {
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES * bits.length);
+        buffer.putInt(hashCount);
+        buffer.asLongBuffer().put(bits);
+        return buffer.rewind();
+    }
+
+    static BloomFilter deserialize(final ByteBuffer buffer) {
+        final int hashCount = buffer.getInt();
+        final long[] bits = new long[buffer.remaining() / Long.BYTES];
+        buffer.asLongBuffer().get(bits);
+        return new BloomFilter(hashCount, bits);
+    }
+}
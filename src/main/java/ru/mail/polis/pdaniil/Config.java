@@ -0,0 +1,494 @@
+package ru.mail.polis.pdaniil;
+
+/**
+ * Tuning parameters of {@link MyDAO}.
+ */
+public final class Config {
+
+    public static final Config DEFAULT = builder().build();
+
+    private final int maxPendingFlushes;
+    private final WriteAheadLog.SyncMode syncMode;
+    private final long syncPeriodMillis;
+    private final MutableTable.Implementation memTableImplementation;
+    private final long memTableSize;
+    private final int compactionTrigger;
+    private final int slowdownTableCount;
+    private final int stopTableCount;
+    private final long slowdownPendingFlushBytes;
+    private final long stopPendingFlushBytes;
+    private final long slowdownCompactionDebt;
+    private final long stopCompactionDebt;
+    private final long maxWriteDelayMicros;
+    private final int bloomBitsPerKey;
+    private final int prefixFilterLength;
+    private final int blockSize;
+    private final long blockCacheSize;
+    private final long rowCacheSize;
+    private final SSTable.Implementation sstableImplementation;
+    private final long mmapTableSize;
+    private final double hotTableReadRate;
+    private final long readerCheckPeriodMillis;
+
+    private Config(final Builder builder) {
+        this.maxPendingFlushes = builder.maxPendingFlushes;
+        this.syncMode = builder.syncMode;
+        this.syncPeriodMillis = builder.syncPeriodMillis;
+        this.memTableImplementation = builder.memTableImplementation;
+        this.memTableSize = builder.memTableSize;
+        this.compactionTrigger = builder.compactionTrigger;
+        this.slowdownTableCount = builder.slowdownTableCount;
+        this.stopTableCount = builder.stopTableCount;
+        this.slowdownPendingFlushBytes = builder.slowdownPendingFlushBytes;
+        this.stopPendingFlushBytes = builder.stopPendingFlushBytes;
+        this.slowdownCompactionDebt = builder.slowdownCompactionDebt;
+        this.stopCompactionDebt = builder.stopCompactionDebt;
+        this.maxWriteDelayMicros = builder.maxWriteDelayMicros;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.prefixFilterLength = builder.prefixFilterLength;
+        this.blockSize = builder.blockSize;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.rowCacheSize = builder.rowCacheSize;
+        this.sstableImplementation = builder.sstableImplementation;
+        this.mmapTableSize = builder.mmapTableSize;
+        this.hotTableReadRate = builder.hotTableReadRate;
+        this.readerCheckPeriodMillis = builder.readerCheckPeriodMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** How many frozen memtables may wait for flush before writers are stalled. */
+    public int getMaxPendingFlushes() {
+        return maxPendingFlushes;
+    }
+
+    /** When write-ahead log records are forced to disk. */
+    public WriteAheadLog.SyncMode getSyncMode() {
+        return syncMode;
+    }
+
+    /** Period of background log sync in {@link WriteAheadLog.SyncMode#PERIODIC} mode. */
+    public long getSyncPeriodMillis() {
+        return syncPeriodMillis;
+    }
+
+    /** Where memtables keep their data. */
+    public MutableTable.Implementation getMemTableImplementation() {
+        return memTableImplementation;
+    }
+
+    /** Size of memtable in bytes which triggers flush, 0 means a fraction of max heap. */
+    public long getMemTableSize() {
+        return memTableSize;
+    }
+
+    /** SSTable count which triggers background compaction. */
+    public int getCompactionTrigger() {
+        return compactionTrigger;
+    }
+
+    /** SSTable count at which writes start to slow down. */
+    public int getSlowdownTableCount() {
+        return slowdownTableCount;
+    }
+
+    /** SSTable count at which writes wait for compaction. */
+    public int getStopTableCount() {
+        return stopTableCount;
+    }
+
+    /** Bytes of memtables waiting for flush at which writes start to slow down. */
+    public long getSlowdownPendingFlushBytes() {
+        return slowdownPendingFlushBytes;
+    }
+
+    /** Bytes of memtables waiting for flush at which writes wait for flush. */
+    public long getStopPendingFlushBytes() {
+        return stopPendingFlushBytes;
+    }
+
+    /** Compaction debt in bytes at which writes start to slow down. */
+    public long getSlowdownCompactionDebt() {
+        return slowdownCompactionDebt;
+    }
+
+    /** Compaction debt in bytes at which writes wait for compaction. */
+    public long getStopCompactionDebt() {
+        return stopCompactionDebt;
+    }
+
+    /** Delay of a write just below stop thresholds. */
+    public long getMaxWriteDelayMicros() {
+        return maxWriteDelayMicros;
+    }
+
+    /** Size of Bloom filter of SSTable per key, 0 means no filter. */
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    /** Length of key prefixes put into prefix filter of SSTable, 0 means no prefix filter. */
+    public int getPrefixFilterLength() {
+        return prefixFilterLength;
+    }
+
+    /** Size of data blocks of SSTable in bytes, 0 means a table with offset of every cell. */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /** Byte budget of the cache of SSTable blocks, 0 means no cache. */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    /** Byte budget of the cache of point lookup results, 0 means no cache. */
+    public long getRowCacheSize() {
+        return rowCacheSize;
+    }
+
+    /** How SSTable files are read. */
+    public SSTable.Implementation getSSTableImplementation() {
+        return sstableImplementation;
+    }
+
+    /** Size of the biggest SSTable which is memory mapped in {@link SSTable.Implementation#ADAPTIVE} mode. */
+    public long getMmapTableSize() {
+        return mmapTableSize;
+    }
+
+    /** Reads per second which make SSTable mapped in {@link SSTable.Implementation#ADAPTIVE} mode. */
+    public double getHotTableReadRate() {
+        return hotTableReadRate;
+    }
+
+    /** Period of checks of SSTable read rates in {@link SSTable.Implementation#ADAPTIVE} mode. */
+    public long getReaderCheckPeriodMillis() {
+        return readerCheckPeriodMillis;
+    }
+
+    public static final class Builder {
+
+        private int maxPendingFlushes = 2;
+        private WriteAheadLog.SyncMode syncMode = WriteAheadLog.SyncMode.PERIODIC;
+        private long syncPeriodMillis = 100;
+        private MutableTable.Implementation memTableImplementation = MutableTable.Implementation.ON_HEAP;
+        private long memTableSize;
+        private int compactionTrigger = 16;
+        private int slowdownTableCount = 24;
+        private int stopTableCount = 32;
+        private long slowdownPendingFlushBytes = 256L * 1024 * 1024;
+        private long stopPendingFlushBytes = 512L * 1024 * 1024;
+        private long slowdownCompactionDebt = 1024L * 1024 * 1024;
+        private long stopCompactionDebt = 4096L * 1024 * 1024;
+        private long maxWriteDelayMicros = 1000;
+        private int bloomBitsPerKey = 10;
+        private int prefixFilterLength;
+        private int blockSize = 4096;
+        private long blockCacheSize = 8L * 1024 * 1024;
+        private long rowCacheSize;
+        private SSTable.Implementation sstableImplementation = SSTable.Implementation.FILE_CHANNEL_READ;
+        private long mmapTableSize = 256L * 1024 * 1024;
+        private double hotTableReadRate = 100;
+        private long readerCheckPeriodMillis = 10_000;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets limit of frozen memtables waiting for flush.
+         *
+         * @param maxPendingFlushes positive limit
+         * @return this builder
+         */
+        public Builder maxPendingFlushes(final int maxPendingFlushes) {
+            if (maxPendingFlushes < 1) {
+                throw new IllegalArgumentException("At least one pending flush must be allowed");
+            }
+            this.maxPendingFlushes = maxPendingFlushes;
+            return this;
+        }
+
+        /**
+         * Sets write-ahead log sync mode.
+         *
+         * @param syncMode sync mode
+         * @return this builder
+         */
+        public Builder syncMode(final WriteAheadLog.SyncMode syncMode) {
+            this.syncMode = syncMode;
+            return this;
+        }
+
+        /**
+         * Sets period of background log sync, used in {@link WriteAheadLog.SyncMode#PERIODIC} mode.
+         *
+         * @param syncPeriodMillis positive period in milliseconds
+         * @return this builder
+         */
+        public Builder syncPeriodMillis(final long syncPeriodMillis) {
+            if (syncPeriodMillis <= 0) {
+                throw new IllegalArgumentException("Sync period must be positive");
+            }
+            this.syncPeriodMillis = syncPeriodMillis;
+            return this;
+        }
+
+        /**
+         * Sets memtable implementation.
+         * Off-heap memtables are not limited by the heap size, so they are usually given bigger size.
+         * They are limited by {@code -XX:MaxDirectMemorySize} instead, which is max heap size by default:
+         * the current memtable and {@link #maxPendingFlushes(int)} frozen ones must fit into it.
+         *
+         * @param memTableImplementation memtable implementation
+         * @return this builder
+         */
+        public Builder memTableImplementation(final MutableTable.Implementation memTableImplementation) {
+            this.memTableImplementation = memTableImplementation;
+            return this;
+        }
+
+        /**
+         * Sets memtable size which triggers flush.
+         *
+         * @param memTableSize positive size in bytes
+         * @return this builder
+         */
+        public Builder memTableSize(final long memTableSize) {
+            if (memTableSize <= 0) {
+                throw new IllegalArgumentException("Memtable size must be positive");
+            }
+            this.memTableSize = memTableSize;
+            return this;
+        }
+
+        /**
+         * Sets SSTable count which triggers background compaction.
+         *
+         * @param compactionTrigger table count, at least 2
+         * @return this builder
+         */
+        public Builder compactionTrigger(final int compactionTrigger) {
+            if (compactionTrigger < 2) {
+                throw new IllegalArgumentException("Compaction needs at least two tables");
+            }
+            this.compactionTrigger = compactionTrigger;
+            return this;
+        }
+
+        /**
+         * Sets SSTable count thresholds of write throttling.
+         * Memtables waiting for flush are counted too, since compaction doesn't hold their flushes back.
+         *
+         * @param slowdown table count at which writes start to slow down
+         * @param stop table count at which writes wait for compaction
+         * @return this builder
+         */
+        public Builder tableCountThresholds(final int slowdown, final int stop) {
+            checkThresholds(slowdown, stop);
+            this.slowdownTableCount = slowdown;
+            this.stopTableCount = stop;
+            return this;
+        }
+
+        /**
+         * Sets thresholds of write throttling by memtables waiting for flush.
+         *
+         * @param slowdown bytes at which writes start to slow down
+         * @param stop bytes at which writes wait for flush
+         * @return this builder
+         */
+        public Builder pendingFlushBytesThresholds(final long slowdown, final long stop) {
+            checkThresholds(slowdown, stop);
+            this.slowdownPendingFlushBytes = slowdown;
+            this.stopPendingFlushBytes = stop;
+            return this;
+        }
+
+        /**
+         * Sets thresholds of write throttling by compaction debt,
+         * i.e. bytes of all SSTables except the biggest one.
+         *
+         * @param slowdown bytes at which writes start to slow down
+         * @param stop bytes at which writes wait for compaction
+         * @return this builder
+         */
+        public Builder compactionDebtThresholds(final long slowdown, final long stop) {
+            checkThresholds(slowdown, stop);
+            this.slowdownCompactionDebt = slowdown;
+            this.stopCompactionDebt = stop;
+            return this;
+        }
+
+        /**
+         * Sets delay of a write just below stop thresholds.
+         *
+         * @param maxWriteDelayMicros non-negative delay in microseconds
+         * @return this builder
+         */
+        public Builder maxWriteDelayMicros(final long maxWriteDelayMicros) {
+            if (maxWriteDelayMicros < 0) {
+                throw new IllegalArgumentException("Write delay must not be negative");
+            }
+            this.maxWriteDelayMicros = maxWriteDelayMicros;
+            return this;
+        }
+
+        /**
+         * Sets size of Bloom filters written into new SSTables.
+         * 10 bits per key give about 1% of false positives.
+         *
+         * @param bloomBitsPerKey non-negative bits per key, 0 disables filters
+         * @return this builder
+         */
+        public Builder bloomBitsPerKey(final int bloomBitsPerKey) {
+            if (bloomBitsPerKey < 0) {
+                throw new IllegalArgumentException("Bits per key must not be negative");
+            }
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            return this;
+        }
+
+        /**
+         * Sets length of key prefixes whose Bloom filter is written into new SSTables.
+         * Prefix scans with prefix at least that long skip tables without the prefix.
+         * The filter takes {@link #bloomBitsPerKey(int)} bits per distinct prefix,
+         * keys shorter than the length are not put into it.
+         *
+         * @param prefixFilterLength non-negative length in bytes, 0 disables prefix filters
+         * @return this builder
+         */
+        public Builder prefixFilterLength(final int prefixFilterLength) {
+            if (prefixFilterLength < 0) {
+                throw new IllegalArgumentException("Prefix length must not be negative");
+            }
+            this.prefixFilterLength = prefixFilterLength;
+            return this;
+        }
+
+        /**
+         * Sets size of data blocks of new SSTables.
+         * A lookup reads one block, so smaller blocks mean less bytes read per lookup
+         * and bigger in-memory index of block keys.
+         *
+         * @param blockSize non-negative size in bytes, 0 writes tables with offset of every cell
+         * @return this builder
+         */
+        public Builder blockSize(final int blockSize) {
+            if (blockSize < 0) {
+                throw new IllegalArgumentException("Block size must not be negative");
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets byte budget of the cache of blocks read from SSTable files.
+         * Memory mapped tables are served by the page cache and don't use it.
+         *
+         * @param blockCacheSize non-negative size in bytes, 0 disables the cache
+         * @return this builder
+         */
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0) {
+                throw new IllegalArgumentException("Block cache size must not be negative");
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets byte budget of the cache of values and absent keys found by point lookups.
+         * The budget comes out of the heap, so it should be sized by hit rate of the cache.
+         *
+         * @param rowCacheSize non-negative size in bytes, 0 disables the cache
+         * @return this builder
+         */
+        public Builder rowCacheSize(final long rowCacheSize) {
+            if (rowCacheSize < 0) {
+                throw new IllegalArgumentException("Row cache size must not be negative");
+            }
+            this.rowCacheSize = rowCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets how SSTable files are read.
+         * In {@link SSTable.Implementation#ADAPTIVE} mode small tables are memory mapped while they are read often,
+         * fresh flushed tables start mapped and others start with positional reads.
+         * Read rates are checked periodically and tables are reopened with the reader which suits them.
+         *
+         * @param sstableImplementation reader of all tables or adaptive choice per table
+         * @return this builder
+         */
+        public Builder sstableImplementation(final SSTable.Implementation sstableImplementation) {
+            this.sstableImplementation = sstableImplementation;
+            return this;
+        }
+
+        /**
+         * Sets size of the biggest SSTable which is memory mapped in {@link SSTable.Implementation#ADAPTIVE} mode.
+         * Bigger tables are read through {@link java.nio.channels.FileChannel} however often they are read.
+         *
+         * @param mmapTableSize non-negative size in bytes, 0 means no table is mapped
+         * @return this builder
+         */
+        public Builder mmapTableSize(final long mmapTableSize) {
+            if (mmapTableSize < 0) {
+                throw new IllegalArgumentException("Table size must not be negative");
+            }
+            this.mmapTableSize = mmapTableSize;
+            return this;
+        }
+
+        /**
+         * Sets lookups and scans per second which make SSTable mapped in {@link SSTable.Implementation#ADAPTIVE}
+         * mode. Mapped tables go back to positional reads below half of the rate.
+         *
+         * @param hotTableReadRate positive rate
+         * @return this builder
+         */
+        public Builder hotTableReadRate(final double hotTableReadRate) {
+            if (!(hotTableReadRate > 0)) {
+                throw new IllegalArgumentException("Read rate must be positive");
+            }
+            this.hotTableReadRate = hotTableReadRate;
+            return this;
+        }
+
+        /**
+         * Sets period of checks of SSTable read rates in {@link SSTable.Implementation#ADAPTIVE} mode.
+         *
+         * @param readerCheckPeriodMillis positive period in milliseconds
+         * @return this builder
+         */
+        public Builder readerCheckPeriodMillis(final long readerCheckPeriodMillis) {
+            if (readerCheckPeriodMillis <= 0) {
+                throw new IllegalArgumentException("Check period must be positive");
+            }
+            this.readerCheckPeriodMillis = readerCheckPeriodMillis;
+            return this;
+        }
+
+        private static void checkThresholds(final long slowdown, final long stop) {
+            if (slowdown <= 0 || stop < slowdown) {
+                throw new IllegalArgumentException("Thresholds must be positive and slowdown must not exceed stop");
+            }
+        }
+
+        /**
+         * Creates config.
+         *
+         * @return config
+         * @throws IllegalArgumentException if compaction is triggered only after writes are stopped
+         */
+        public Config build() {
+            if (compactionTrigger >= stopTableCount) {
+                throw new IllegalArgumentException("Compaction must be triggered before writes are stopped");
+            }
+            return new Config(this);
+        }
+    }
+}
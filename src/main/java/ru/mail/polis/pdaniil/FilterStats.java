@@ -0,0 +1,50 @@
+package ru.mail.polis.pdaniil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of Bloom filter checks made by point lookups.
+ * Tables without filter are not counted.
+ */
+public final class FilterStats {
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder negatives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    FilterStats() {
+        // Created by storage
+    }
+
+    void recordNegative() {
+        checks.increment();
+        negatives.increment();
+    }
+
+    void recordPositive(final boolean found) {
+        checks.increment();
+        if (!found) {
+            falsePositives.increment();
+        }
+    }
+
+    /** Lookups of a key in a table with filter. */
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    /** Lookups which skipped the table because the filter ruled the key out. */
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    /** Lookups which read the table because of the filter, but found no key there. */
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "checks " + getChecks() + ", negatives " + getNegatives() + ", false positives " + getFalsePositives();
+    }
+}
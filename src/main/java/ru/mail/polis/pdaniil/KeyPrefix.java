@@ -0,0 +1,54 @@
+package ru.mail.polis.pdaniil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The first bytes of keys packed into longs, so most comparisons of keys are made on primitives.
+ */
+final class KeyPrefix {
+
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    private KeyPrefix() {
+        // Not instantiable
+    }
+
+    /**
+     * Packs the first 8 bytes of the key into a long which compares unsigned like
+     * {@link ByteBuffer#compareTo} compares signed bytes. Shorter keys are padded with zeros,
+     * so equal prefixes need comparison of whole keys.
+     *
+     * @param key key to pack
+     * @return prefix of the key
+     */
+    static long of(final ByteBuffer key) {
+        final int position = key.position();
+        final int length = key.remaining();
+        if (length >= Long.BYTES) {
+            // Keys of users come in any byte order, while bytes are compared first to last
+            final long bytes = key.getLong(position);
+            final long prefix = key.order() == ByteOrder.BIG_ENDIAN ? bytes : Long.reverseBytes(bytes);
+            // Flipped sign bits of bytes turn signed order of bytes into unsigned order
+            return prefix ^ SIGN_BITS;
+        }
+
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix <<= Byte.SIZE;
+            if (i < length) {
+                prefix |= (key.get(position + i) ^ Byte.MIN_VALUE) & 0xFF;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares prefixes of keys.
+     *
+     * @return sign of comparison of the keys, 0 if the keys must be compared as a whole
+     */
+    static int compare(final long left, final long right) {
+        return Long.compareUnsigned(left, right);
+    }
+}
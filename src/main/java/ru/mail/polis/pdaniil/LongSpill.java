@@ -0,0 +1,77 @@
+package ru.mail.polis.pdaniil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequence of longs kept in a temporary file instead of heap, so per-cell data of a table being written
+ * takes no memory however many cells the table has. The file is deleted when closed.
+ */
+final class LongSpill implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long count;
+
+    /**
+     * Creates empty sequence.
+     *
+     * @param file temporary file, existing one is a leftover of an interrupted write and is replaced
+     * @throws IOException if unable to create file
+     */
+    LongSpill(final Path file) throws IOException {
+        Files.deleteIfExists(file);
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    void add(final long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            drain();
+        }
+        buffer.putLong(value);
+        count++;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Appends all longs in order to the channel at its current position.
+     *
+     * @param target channel of the file being written
+     * @throws IOException if unable to read or write file
+     */
+    void transferTo(final FileChannel target) throws IOException {
+        drain();
+        final long size = count * Long.BYTES;
+        long position = 0;
+        while (position < size) {
+            position += channel.transferTo(position, size - position, target);
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
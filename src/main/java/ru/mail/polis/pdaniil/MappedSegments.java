@@ -0,0 +1,118 @@
+package ru.mail.polis.pdaniil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only mapping of a file of any size as adjacent segments,
+ * since a single {@link java.nio.MappedByteBuffer} can't exceed 2 GB.
+ *
+ * <p>Reads within one segment return its slices without copying.
+ * Values which cross the border of segments are copied to heap, which is rare for segments of a gigabyte.</p>
+ */
+final class MappedSegments {
+
+    /* Power of two below the limit of a single mapping */
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private final ByteBuffer[] segments;
+    private final int segmentShift;
+    private final long size;
+
+    /**
+     * Maps the beginning of the file.
+     *
+     * @param channel channel of the file
+     * @param size bytes to map from the beginning of the file
+     * @param segmentSize size of segments, power of two
+     * @throws IOException if unable to map the file
+     */
+    MappedSegments(final FileChannel channel, final long size, final int segmentSize) throws IOException {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size must be a power of two: " + segmentSize);
+        }
+
+        this.size = size;
+        segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        segments = new ByteBuffer[(int) ((size + segmentSize - 1) >>> segmentShift)];
+        for (int i = 0; i < segments.length; i++) {
+            final long start = (long) i << segmentShift;
+            segments[i] = channel
+                    .map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start))
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .asReadOnlyBuffer();
+        }
+    }
+
+    byte get(final long offset) {
+        return segment(offset).get(position(offset));
+    }
+
+    int getInt(final long offset) {
+        final ByteBuffer segment = segment(offset);
+        final int position = position(offset);
+        if (position + Integer.BYTES <= segment.limit()) {
+            return segment.getInt(position);
+        }
+        return copy(offset, Integer.BYTES).getInt();
+    }
+
+    long getLong(final long offset) {
+        final ByteBuffer segment = segment(offset);
+        final int position = position(offset);
+        if (position + Long.BYTES <= segment.limit()) {
+            return segment.getLong(position);
+        }
+        return copy(offset, Long.BYTES).getLong();
+    }
+
+    /**
+     * Provides bytes of the file.
+     *
+     * @param offset offset in the file
+     * @param length count of bytes
+     * @return read-only buffer, a slice of mapped memory unless the bytes cross the border of segments
+     */
+    ByteBuffer slice(final long offset, final int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+
+        final ByteBuffer segment = segment(offset);
+        final int position = position(offset);
+        if (position + length <= segment.limit()) {
+            final ByteBuffer slice = segment.duplicate();
+            slice.limit(position + length);
+            slice.position(position);
+            return slice.slice();
+        }
+        return copy(offset, length).asReadOnlyBuffer();
+    }
+
+    private ByteBuffer copy(final long offset, final int length) {
+        if (offset + length > size) {
+            throw new IndexOutOfBoundsException("Read of " + length + " bytes at " + offset + " of " + size);
+        }
+
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        long current = offset;
+        while (result.hasRemaining()) {
+            final ByteBuffer part = segment(current).duplicate();
+            part.position(position(current));
+            part.limit(Math.min(part.limit(), part.position() + result.remaining()));
+            current += part.remaining();
+            result.put(part);
+        }
+        return result.flip();
+    }
+
+    private ByteBuffer segment(final long offset) {
+        return segments[(int) (offset >>> segmentShift)];
+    }
+
+    private int position(final long offset) {
+        return (int) (offset & ((1L << segmentShift) - 1));
+    }
+}
@@ -2,21 +2,37 @@ package ru.mail.polis.pdaniil;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class MemTable implements Table {
+public class MemTable implements MutableTable {
 
-    private final NavigableMap<ByteBuffer, Value> db = new TreeMap<>();
-    private long size;
-    private long version;
+    /*
+     * Estimated heap overhead of a single entry: skip list node and index,
+     * Value and two ByteBuffer headers. Without it frozen tables of tiny
+     * records would take many times more heap than accounted.
+     */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    /* Heap overhead of an older version of a key: Version, Value and ByteBuffer header */
+    private static final int VERSION_OVERHEAD = 96;
+
+    private final NavigableMap<ByteBuffer, Version> db = new ConcurrentSkipListMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private volatile long version;
 
     /**
      * Implementation of in-memory table.
+     * Safe for concurrent writers and readers, iterators are weakly consistent.
      *
      * @param version version of current table
      */
@@ -26,42 +42,69 @@ public class MemTable implements Table {
 
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, Long.MAX_VALUE);
+    }
 
-        final Iterator<Map.Entry<ByteBuffer, Value>> entryIter = db.tailMap(from).entrySet().iterator();
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long timeStamp) {
 
-        return Iterators.transform(entryIter, entry -> Cell.create(entry.getKey(), entry.getValue(), version));
+        return visibleCells(db.tailMap(from), timeStamp);
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value prev = db.put(key, Value.of(value));
-        if (prev == null) {
-            // Added new key and value. Calc space for them.
-            size += key.limit() + value.limit();
-        } else if (prev.isRemoved()) {
-            // Has only key before. Calc space for value.
-            size += value.limit();
-        } else {
-            // Has key and value before. Calc prev and new value size difference.
-            size += value.limit() - prev.getData().limit();
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer from, final long timeStamp) {
+        final NavigableMap<ByteBuffer, Version> head = from == null ? db : db.headMap(from, true);
+        return visibleCells(head.descendingMap(), timeStamp);
+    }
+
+    private Iterator<Cell> visibleCells(final Map<ByteBuffer, Version> entries, final long timeStamp) {
+        final Iterator<Cell> cells = Iterators.transform(entries.entrySet().iterator(), entry -> {
+            final Value value = entry.getValue().visible(timeStamp);
+            return value == null ? null : Cell.create(entry.getKey(), value, version);
+        });
+
+        return Iterators.filter(cells, Objects::nonNull);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long timeStamp) {
+        final Version versions = db.get(key);
+        if (versions == null) {
+            return null;
         }
+        final Value value = versions.visible(timeStamp);
+        return value == null ? null : Cell.create(key, value, version);
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        final Value prev = db.put(key, Value.tombstone());
-        if (prev == null) {
-            // Calc key size.
-            size += key.limit();
-        } else if (!prev.isRemoved()) {
-            // Substract prev value size.
-            size -= prev.getData().limit();
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long timeStamp) {
+        insert(key, Value.of(timeStamp, value), value.limit());
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key, final long timeStamp) {
+        insert(key, Value.tombstone(timeStamp), 0);
+    }
+
+    private void insert(final ByteBuffer key, final Value value, final int valueSize) {
+        if (db.putIfAbsent(key, new Version(value, null)) == null) {
+            size.addAndGet(ENTRY_OVERHEAD + key.limit() + valueSize);
+            keyCount.incrementAndGet();
+        } else {
+            db.compute(key, (k, head) -> head.insert(value));
+            size.addAndGet(VERSION_OVERHEAD + valueSize);
         }
     }
 
     @Override
     public long getSize() {
-        return size;
+        return size.get();
+    }
+
+    @Override
+    public int getKeyCount() {
+        return keyCount.get();
     }
 
     @Override
@@ -69,7 +112,48 @@ public class MemTable implements Table {
         return version;
     }
 
+    @Override
     public void setVersion(final long version) {
         this.version = version;
     }
+
+    /**
+     * Immutable chain of values of a key, newest first.
+     */
+    private static final class Version {
+        private final Value value;
+        private final Version previous;
+
+        private Version(final Value value, final Version previous) {
+            this.value = value;
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the newest value written not after given sequence number.
+         */
+        private Value visible(final long timeStamp) {
+            Version current = this;
+            while (current != null && current.value.getTimeStamp() > timeStamp) {
+                current = current.previous;
+            }
+            return current == null ? null : current.value;
+        }
+
+        /**
+         * Returns chain with the value put in sequence order.
+         * Concurrent writers of a key may come out of order, then newer versions are copied.
+         */
+        private Version insert(final Value inserted) {
+            final long timeStamp = inserted.getTimeStamp();
+            if (timeStamp > value.getTimeStamp()) {
+                return new Version(inserted, this);
+            }
+            if (timeStamp == value.getTimeStamp()) {
+                // Later write of the same batch
+                return new Version(inserted, previous);
+            }
+            return new Version(value, previous == null ? new Version(inserted, null) : previous.insert(inserted));
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package ru.mail.polis.pdaniil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted cells of several tables into the newest live cell of each key.
+ *
+ * <p>Heads of tables are kept in a binary heap of table indices ordered like {@link Cell#compareTo},
+ * so the newest cell of the smallest key is on top. Older cells of the same key
+ * and tombstones are skipped right in the merge, no wrappers are allocated per cell.
+ * Descending merge puts the largest key on top and still takes the newest cell of it.</p>
+ */
+final class MergeIterator implements Iterator<Cell> {
+
+    private final boolean descending;
+    private final List<Iterator<Cell>> tables;
+    private final Cell[] heads;
+    /* The first bytes of head keys, most of comparisons are decided by them */
+    private final long[] prefixes;
+    /* Indices of tables with cells left, heap ordered by their heads */
+    private final int[] heap;
+    private int size;
+
+    private Cell next;
+
+    MergeIterator(final List<Iterator<Cell>> iterators) {
+        this(iterators, false);
+    }
+
+    /**
+     * Creates merge of tables sorted the same way.
+     *
+     * @param iterators iterators over cells of tables
+     * @param descending whether cells of tables come in descending order of keys
+     */
+    MergeIterator(final List<Iterator<Cell>> iterators, final boolean descending) {
+        this.descending = descending;
+        tables = new ArrayList<>(iterators);
+        heads = new Cell[tables.size()];
+        prefixes = new long[tables.size()];
+        heap = new int[tables.size()];
+
+        for (int table = 0; table < tables.size(); table++) {
+            if (tables.get(table).hasNext()) {
+                setHead(table, tables.get(table).next());
+                heap[size++] = table;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        final Cell result = next;
+        next = advance();
+        return result;
+    }
+
+    /**
+     * Takes the newest cell of the smallest key and drops older cells of that key.
+     *
+     * @return the next live cell or null if tables are exhausted
+     */
+    private Cell advance() {
+        while (size > 0) {
+            final Cell newest = heads[heap[0]];
+            final ByteBuffer key = newest.getKey();
+            pollTop();
+            while (size > 0 && heads[heap[0]].getKey().equals(key)) {
+                pollTop();
+            }
+
+            if (!newest.getValue().isRemoved()) {
+                return newest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the top head with the next cell of its table.
+     */
+    private void pollTop() {
+        final int table = heap[0];
+        if (tables.get(table).hasNext()) {
+            setHead(table, tables.get(table).next());
+        } else {
+            heads[table] = null;
+            heap[0] = heap[--size];
+        }
+        siftDown(0);
+    }
+
+    private void setHead(final int table, final Cell cell) {
+        heads[table] = cell;
+        prefixes[table] = KeyPrefix.of(cell.getKey());
+    }
+
+    private void siftDown(final int from) {
+        int parent = from;
+        final int table = heap[parent];
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0) {
+                child++;
+            }
+            if (compare(table, heap[child]) <= 0) {
+                break;
+            }
+            heap[parent] = heap[child];
+            parent = child;
+        }
+        heap[parent] = table;
+    }
+
+    /**
+     * Compares heads of tables: smaller key first (larger for descending merge),
+     * then newer write, then newer table.
+     */
+    private int compare(final int left, final int right) {
+        final Cell a = heads[left];
+        final Cell b = heads[right];
+        int keys = KeyPrefix.compare(prefixes[left], prefixes[right]);
+        if (keys == 0) {
+            keys = a.getKey().compareTo(b.getKey());
+        }
+        if (keys != 0) {
+            return descending ? -keys : keys;
+        }
+        final int timeStamps = Long.compare(b.getValue().getTimeStamp(), a.getValue().getTimeStamp());
+        if (timeStamps != 0) {
+            return timeStamps;
+        }
+        return Long.compare(b.getVersion(), a.getVersion());
+    }
+}
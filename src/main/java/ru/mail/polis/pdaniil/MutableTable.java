@@ -0,0 +1,90 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * In-memory table which accepts writes until it is frozen and flushed.
+ */
+public interface MutableTable extends Table {
+
+    enum Implementation {
+        ON_HEAP,
+        OFF_HEAP
+    }
+
+    /**
+     * Provides cells as they were after the write with given sequence number.
+     * Keys written only after it are skipped.
+     *
+     * @param from first key (inclusive)
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over cells
+     */
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, long timeStamp);
+
+    /**
+     * Provides cells with keys not greater than given one in descending order,
+     * as they were after the write with given sequence number.
+     *
+     * @param from first key (inclusive) or null to start from the largest key
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over cells
+     */
+    Iterator<Cell> descendingIterator(@Nullable ByteBuffer from, long timeStamp);
+
+    /**
+     * Finds the newest cell of the key written not after given sequence number.
+     *
+     * @param key key to find
+     * @param timeStamp sequence number of the last visible write
+     * @return cell, possibly tombstone, or null if the key is absent
+     */
+    @Nullable
+    Cell get(@NotNull ByteBuffer key, long timeStamp);
+
+    /**
+     * Inserts or updates value.
+     * Older versions are kept for readers of older sequence numbers,
+     * a write with the same sequence number replaces the version.
+     *
+     * @param key key to upsert
+     * @param value value to upsert
+     * @param timeStamp sequence number of the write
+     */
+    void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long timeStamp);
+
+    /**
+     * Removes value.
+     *
+     * @param key key to remove
+     * @param timeStamp sequence number of the write
+     */
+    void remove(@NotNull ByteBuffer key, long timeStamp);
+
+    /**
+     * Returns count of distinct keys, i.e. count of cells of the SSTable flushed from the table.
+     */
+    int getKeyCount();
+
+    void setVersion(long version);
+
+    /**
+     * Creates empty table.
+     *
+     * @param impl type of implementation
+     * @param version version of the table
+     * @param sizeHint expected size of the table in bytes
+     * @return new table
+     */
+    static MutableTable create(final Implementation impl, final long version, final long sizeHint) {
+        if (impl == Implementation.OFF_HEAP) {
+            return new OffHeapMemTable(version, sizeHint);
+        } else {
+            return new MemTable(version);
+        }
+    }
+}
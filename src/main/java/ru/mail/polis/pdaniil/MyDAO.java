@@ -1,34 +1,83 @@
 package ru.mail.polis.pdaniil;
 
-import com.google.common.collect.Iterators;
-import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.management.HotSpotDiagnosticMXBean;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 public class MyDAO implements DAO {
 
-    private static final SSTable.Implementation SSTABLE_IMPL = SSTable.Implementation.FILE_CHANNEL_READ;
+    private static final Logger log = LoggerFactory.getLogger(MyDAO.class);
+
     private static final ByteBuffer MIN_BYTE_BUFFER = ByteBuffer.allocate(0);
     private static final double LOAD_FACTOR = 0.016;
 
     private final long allowableMemTableSize;
 
     private final Path tablesDir;
-    
-    private int versionCounter;
+    private final Config config;
+
+    /*
+     * Writers share the read lock while touching the MemTable,
+     * table set changes are made under the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition flushDone = lock.writeLock().newCondition();
+    /* Flushes memtables one at a time in the order they were frozen */
+    private final ExecutorService flusher;
+    /*
+     * Runs compactions and changes of table readers one at a time, so both see the same tables,
+     * while memtables keep being flushed.
+     */
+    private final ScheduledExecutorService compactor;
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private final WriteAheadLog wal;
+    private final WriteController writeController;
+    private final Sequence sequence;
+    private final FilterStats filterStats = new FilterStats();
+    private final BlockCache blockCache;
+    private final RowCache rowCache;
+    private final ReaderPolicy readerPolicy;
 
-    private MemTable memTable;
-    private List<SSTable> ssTableList;
+    private long versionCounter;
+    /* Touched by the compactor thread only */
+    private long lastReaderCheck = System.nanoTime();
+
+    private volatile TableSet tables;
+    private volatile Exception flushError;
 
     /** 
      * DAO Implementation for LSM Database.
@@ -38,105 +87,911 @@ public class MyDAO implements DAO {
      * @throws IOException if unable to read existing SSTable files
      */
     public MyDAO(final Path tablesDir, final long maxHeap) throws IOException {
-        
-        ssTableList = SSTable.findVersions(tablesDir, SSTABLE_IMPL);
-        versionCounter = ssTableList.size();
-        memTable = new MemTable(++versionCounter);
-        
-        this.allowableMemTableSize = (long) (maxHeap * LOAD_FACTOR);
+        this(tablesDir, maxHeap, Config.DEFAULT);
+    }
+
+    /**
+     * DAO Implementation for LSM Database.
+     *
+     * @param tablesDir directory to store SSTable files
+     * @param maxHeap max memory, allocated for JVM
+     * @param config tuning parameters
+     * @throws IOException if unable to read existing SSTable files or replay write-ahead log
+     */
+    public MyDAO(final Path tablesDir, final long maxHeap, final Config config) throws IOException {
+        this(
+                tablesDir,
+                maxHeap,
+                config,
+                new BlockCache(config.getBlockCacheSize()),
+                new RowCache(config.getRowCacheSize()));
+    }
+
+    /**
+     * DAO Implementation for LSM Database, which shares caches with other storages.
+     *
+     * @param tablesDir directory to store SSTable files
+     * @param maxHeap max memory, allocated for JVM
+     * @param config tuning parameters, cache sizes are ignored
+     * @param blockCache cache of SSTable blocks
+     * @param rowCache cache of results of {@link #get(ByteBuffer)}
+     * @throws IOException if unable to read existing SSTable files or replay write-ahead log
+     */
+    MyDAO(
+            final Path tablesDir,
+            final long maxHeap,
+            final Config config,
+            final BlockCache blockCache,
+            final RowCache rowCache) throws IOException {
+
+        this.allowableMemTableSize = allowableMemTableSize(maxHeap, config);
+        checkDirectMemory(config, allowableMemTableSize, 1);
         this.tablesDir = tablesDir;
+        this.config = config;
+        this.writeController = new WriteController(config);
+        this.blockCache = blockCache;
+        this.rowCache = rowCache;
+        this.readerPolicy = new ReaderPolicy(config);
+
+        final List<SSTable> ssTableList = new ArrayList<>(SSTable.findVersions(tablesDir, readerPolicy, blockCache));
+        final AtomicLong recoveredTimeStamp = new AtomicLong();
+        // Compaction keeps the newest version of its tables, so versions may have gaps
+        for (final SSTable ssTable : ssTableList) {
+            versionCounter = Math.max(versionCounter, ssTable.getVersion());
+            final long maxTimeStamp = ssTable.getMaxTimeStamp();
+            recoveredTimeStamp.accumulateAndGet(
+                    maxTimeStamp == SSTable.UNKNOWN_TIME_STAMP ? Sequence.fromClock() : maxTimeStamp,
+                    Math::max);
+        }
+
+        this.wal = WriteAheadLog.recover(
+                tablesDir,
+                config.getSyncMode(),
+                config.getSyncPeriodMillis(),
+                segment -> recoverSegment(segment, ssTableList, recoveredTimeStamp));
+        this.sequence = new Sequence(recoveredTimeStamp.get());
+
+        tables = TableSet.create(createMemTable(++versionCounter), ssTableList);
+        this.flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("flusher-%d")
+                .setDaemon(true)
+                .build());
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("compactor-%d")
+                .setDaemon(true)
+                .build());
+
+        scheduleCompactionIfNeeded();
+        if (readerPolicy.isAdaptive()) {
+            compactor.scheduleWithFixedDelay(
+                    this::adaptReaders,
+                    config.getReaderCheckPeriodMillis(),
+                    config.getReaderCheckPeriodMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static long allowableMemTableSize(final long maxHeap, final Config config) {
+        return config.getMemTableSize() > 0
+                ? config.getMemTableSize()
+                : (long) (maxHeap * LOAD_FACTOR);
+    }
+
+    /**
+     * Checks that off-heap memtables fit into direct memory: the current one and the frozen ones
+     * waiting for flush of every storage, otherwise writes would fail with {@link OutOfMemoryError}.
+     *
+     * @param config tuning parameters of the storages
+     * @param memTableSize size of memtable which triggers flush
+     * @param storages count of storages in this JVM with the same parameters
+     * @throws IllegalArgumentException if the memtables may take more than {@code -XX:MaxDirectMemorySize}
+     */
+    static void checkDirectMemory(final Config config, final long memTableSize, final int storages) {
+        if (config.getMemTableImplementation() != MutableTable.Implementation.OFF_HEAP) {
+            return;
+        }
+        final long required = OffHeapMemTable.maxDirectMemory(memTableSize)
+                * (config.getMaxPendingFlushes() + 1)
+                * storages;
+        final long limit = maxDirectMemory();
+        if (required > limit) {
+            throw new IllegalArgumentException(
+                    "Off-heap memtables may take " + required + " bytes of direct memory, but only " + limit
+                            + " are available: decrease memtable size or max pending flushes,"
+                            + " or raise -XX:MaxDirectMemorySize");
+        }
+    }
+
+    private static long maxDirectMemory() {
+        final HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        final long limit = hotSpot == null
+                ? 0
+                : Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+        // Zero means the default limit, which is max heap size
+        return limit > 0 ? limit : Runtime.getRuntime().maxMemory();
+    }
+
+    private MutableTable createMemTable(final long version) {
+        return MutableTable.create(config.getMemTableImplementation(), version, allowableMemTableSize);
+    }
+
+    /**
+     * Replays log segment left after crash and persists it as SSTable.
+     */
+    private void recoverSegment(
+            final WriteAheadLog.SegmentReader segment,
+            final List<SSTable> ssTableList,
+            final AtomicLong recoveredTimeStamp) throws IOException {
+
+        final MutableTable recovered = createMemTable(versionCounter + 1);
+        segment.replayTo(new WriteAheadLog.Replayer() {
+
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long timeStamp) {
+                recovered.upsert(key, value, timeStamp);
+                recoveredTimeStamp.accumulateAndGet(timeStamp, Math::max);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key, final long timeStamp) {
+                recovered.remove(key, timeStamp);
+                recoveredTimeStamp.accumulateAndGet(timeStamp, Math::max);
+            }
+        });
+
+        if (recovered.getSize() != 0) {
+            ssTableList.add(SSTable.flush(
+                    tablesDir,
+                    recovered.iterator(MIN_BYTE_BUFFER),
+                    recovered.getKeyCount(),
+                    ++versionCounter,
+                    List.of(),
+                    SSTable.FLUSHED_LEVEL,
+                    readerPolicy,
+                    config,
+                    blockCache));
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
 
-        return Iterators.transform(
-                cellIterator(from, true),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    /**
+     * Opens only SSTables with keys in the range, their scans stop at the bound by themselves.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        // Batches applied after this are not seen even partially
+        final long timeStamp = sequence.visible();
+        return pinTables().pinnedRecords(from, to, timeStamp);
     }
 
-    private Iterator<Cell> cellIterator(
+    /**
+     * Splits the range at keys sampled from SSTables, so parallel streams merge its parts concurrently.
+     * All parts read the tables as they were at the call.
+     */
+    @NotNull
+    @Override
+    public Stream<Record> rangeStream(
             @NotNull final ByteBuffer from,
-            final boolean includeMemTable) throws IOException {
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Stream.empty();
+        }
+        final long timeStamp = sequence.visible();
+        return RangeSpliterator.stream(pinTables(), timeStamp, from, to);
+    }
 
-        final List<Iterator<Cell>> ssIterators = new ArrayList<>();
+    /**
+     * Skips SSTables whose key range or prefix filter rules the prefix out.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> prefix(@NotNull final ByteBuffer prefix) throws IOException {
+        final long timeStamp = sequence.visible();
+        return pinTables().pinnedPrefix(prefix, timeStamp);
+    }
 
-        for (final SSTable ssTable : ssTableList) {
-            ssIterators.add(ssTable.iterator(from));
+    /**
+     * Walks tables backwards, so the first records cost the same as the first records of forward scan.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+        final long timeStamp = sequence.visible();
+        return pinTables().pinnedDescendingRecords(from, to, timeStamp);
+    }
+
+    /**
+     * Lists keys without reading values, big values of SSTables stay on disk.
+     */
+    @NotNull
+    @Override
+    public Iterator<ByteBuffer> keys(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
         }
+        final long timeStamp = sequence.visible();
+        return pinTables().pinnedKeys(from, to, timeStamp);
+    }
 
-        if (includeMemTable) {
-            ssIterators.add(memTable.iterator(from));
+    /**
+     * Looks the key up in the row cache, then in every table, skipping SSTables whose Bloom filter rules it out.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        if (!rowCache.isEnabled()) {
+            return found(lookUp(key));
         }
 
-        final UnmodifiableIterator<Cell> mergeSortedIter =
-                Iterators.mergeSorted(ssIterators, Comparator.naturalOrder());
+        final RowCache.Row row = rowCache.get(key);
+        if (row != null) {
+            return found(row.getValue());
+        }
+        // Taken before the lookup reads tables, so writes during the lookup keep its result out of the cache
+        final long ticket = rowCache.ticket();
+        final ByteBuffer value = lookUp(key);
+        rowCache.put(key, value, ticket);
+        return found(value);
+    }
 
-        final Iterator<Cell> collapsedIter = Iters.collapseEquals(mergeSortedIter, Cell::getKey);
+    @Nullable
+    private ByteBuffer lookUp(@NotNull final ByteBuffer key) throws IOException {
+        final long timeStamp = sequence.visible();
+        final TableSet pinned = pinTables();
+        try {
+            return valueOf(pinned.get(key, timeStamp, filterStats));
+        } finally {
+            pinned.releaseSSTables();
+        }
+    }
 
-        return Iterators.filter(collapsedIter, cell -> !cell.getValue().isRemoved());
+    @Nullable
+    private static ByteBuffer valueOf(@Nullable final Cell cell) {
+        if (cell == null || cell.getValue().isRemoved()) {
+            return null;
+        }
+        return cell.getValue().getData().asReadOnlyBuffer();
+    }
+
+    /**
+     * Takes what it can from the row cache, then sorts the other keys and sweeps every table once for them,
+     * so searches in a table continue from the previous key instead of starting over.
+     */
+    @NotNull
+    @Override
+    public List<ByteBuffer> multiGet(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final List<ByteBuffer> input = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            input.add(key.duplicate());
+        }
+        final ByteBuffer[] values = new ByteBuffer[input.size()];
+
+        final List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < input.size(); i++) {
+            final RowCache.Row row = rowCache.isEnabled() ? rowCache.get(input.get(i)) : null;
+            if (row == null) {
+                misses.add(i);
+            } else {
+                values[i] = row.getValue();
+            }
+        }
+        if (misses.isEmpty()) {
+            return Arrays.asList(values);
+        }
+
+        // Repeated keys are looked up once
+        misses.sort(Comparator.comparing(input::get));
+        final List<ByteBuffer> sorted = new ArrayList<>();
+        final int[] sortedIndex = new int[input.size()];
+        for (final int i : misses) {
+            final ByteBuffer key = input.get(i);
+            if (sorted.isEmpty() || !sorted.get(sorted.size() - 1).equals(key)) {
+                sorted.add(key);
+            }
+            sortedIndex[i] = sorted.size() - 1;
+        }
+
+        final long ticket = rowCache.ticket();
+        final long timeStamp = sequence.visible();
+        final ByteBuffer[] found = new ByteBuffer[sorted.size()];
+        final TableSet pinned = pinTables();
+        try {
+            final Cell[] cells = pinned.getAll(sorted, timeStamp, filterStats);
+            for (int j = 0; j < cells.length; j++) {
+                found[j] = valueOf(cells[j]);
+            }
+        } finally {
+            pinned.releaseSSTables();
+        }
+
+        if (rowCache.isEnabled()) {
+            for (int j = 0; j < found.length; j++) {
+                rowCache.put(sorted.get(j), found[j], ticket);
+            }
+        }
+        for (final int i : misses) {
+            values[i] = found[sortedIndex[i]];
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Reads blocks of FileChannel tables through {@link java.nio.channels.AsynchronousFileChannel},
+     * memory mapped tables, cached blocks and memtables are read in place.
+     * Later stages of the future run on threads which complete reads, so callers should move
+     * heavy work to their own executor.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<ByteBuffer> getAsync(@NotNull final ByteBuffer key) {
+        final ByteBuffer keyDuplicate = key.duplicate();
+        final RowCache.Row row = rowCache.isEnabled() ? rowCache.get(keyDuplicate) : null;
+        if (row != null) {
+            return completed(row.getValue());
+        }
+
+        final long ticket = rowCache.ticket();
+        final long timeStamp = sequence.visible();
+        final TableSet pinned = pinTables();
+        final CompletableFuture<Cell> cell;
+        try {
+            cell = pinned.getAsync(keyDuplicate, timeStamp, filterStats);
+        } catch (RuntimeException e) {
+            pinned.releaseSSTables();
+            throw e;
+        }
+        return cell.thenCompose(found -> {
+            final ByteBuffer value = valueOf(found);
+            if (rowCache.isEnabled()) {
+                rowCache.put(keyDuplicate, value, ticket);
+            }
+            return completed(value);
+        }).whenComplete((value, e) -> pinned.releaseSSTables());
+    }
+
+    private static CompletableFuture<ByteBuffer> completed(@Nullable final ByteBuffer value) {
+        if (value == null) {
+            return CompletableFuture.failedFuture(new NoSuchElementException("Not found"));
+        }
+        return CompletableFuture.completedFuture(value);
+    }
+
+    /**
+     * Requests blocks of all SSTables of the range at once, see {@link #getAsync(ByteBuffer)}.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<List<Record>> rangeAsync(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        final long timeStamp = sequence.visible();
+        final TableSet pinned = pinTables();
+        final CompletableFuture<List<Record>> records;
+        try {
+            records = pinned.recordsAsync(from.duplicate(), to == null ? null : to.duplicate(), timeStamp);
+        } catch (RuntimeException e) {
+            pinned.releaseSSTables();
+            throw e;
+        }
+        return records.whenComplete((result, e) -> pinned.releaseSSTables());
+    }
+
+    @NotNull
+    private static ByteBuffer found(@Nullable final ByteBuffer value) {
+        if (value == null) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value;
+    }
+
+    /**
+     * Returns counters of Bloom filter checks made by {@link #get(ByteBuffer)}.
+     */
+    public FilterStats getFilterStats() {
+        return filterStats;
+    }
+
+    /**
+     * Returns cache of SSTable blocks with its hit, miss and eviction counters.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Returns cache of results of {@link #get(ByteBuffer)} with its hit rate.
+     */
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    /**
+     * Takes a consistent view which doesn't block writers, flushes or compaction.
+     * Tables of the view are kept until it is closed.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final long timeStamp = sequence.visible();
+        return new TableSnapshot(pinTables(), timeStamp, filterStats);
+    }
+
+    /**
+     * Takes current tables, so background compaction doesn't close them under the reader.
+     */
+    private TableSet pinTables() {
+        while (true) {
+            final TableSet current = tables;
+            if (current.retainSSTables()) {
+                return current;
+            }
+            // Compaction has just replaced some of the tables, take the new set
+        }
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key.duplicate(), value.duplicate());
-        if (memTable.getSize() > allowableMemTableSize) {
-            flush();
+        final ByteBuffer keyDuplicate = key.duplicate();
+        final ByteBuffer valueDuplicate = value.duplicate();
+        throttle();
+
+        final MutableTable current;
+        lock.readLock().lock();
+        try {
+            final long timeStamp = sequence.next();
+            try {
+                wal.upsert(keyDuplicate, valueDuplicate, timeStamp);
+                current = tables.getMemTable();
+                current.upsert(keyDuplicate, valueDuplicate, timeStamp);
+            } finally {
+                sequence.publish(timeStamp);
+                rowCache.invalidate(keyDuplicate);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
+        flushIfFull(current);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key.duplicate());
-        if (memTable.getSize() > allowableMemTableSize) {
-            flush();
+        final ByteBuffer keyDuplicate = key.duplicate();
+        throttle();
+
+        final MutableTable current;
+        lock.readLock().lock();
+        try {
+            final long timeStamp = sequence.next();
+            try {
+                wal.remove(keyDuplicate, timeStamp);
+                current = tables.getMemTable();
+                current.remove(keyDuplicate, timeStamp);
+            } finally {
+                sequence.publish(timeStamp);
+                rowCache.invalidate(keyDuplicate);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
+        flushIfFull(current);
     }
 
-    private void flush() throws IOException {
-        DebugUtils.flushInfo(memTable);
+    /**
+     * Applies the batch atomically: all operations get the same sequence number, are logged as a single record
+     * and land in the same memtable. Readers see either the whole batch or none of it.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
 
-        ssTableList.add(SSTable.flush(
-                tablesDir, 
-                memTable.iterator(MIN_BYTE_BUFFER),
-                memTable.getVersion(),
-                SSTABLE_IMPL));
+        throttle();
 
-        memTable = new MemTable(++versionCounter);
+        final MutableTable current;
+        lock.readLock().lock();
+        try {
+            final long timeStamp = sequence.next();
+            try {
+                wal.write(batch, timeStamp);
+                current = tables.getMemTable();
+                for (final WriteBatch.Operation operation : batch.getOperations()) {
+                    final ByteBuffer value = operation.getValue();
+                    if (value == null) {
+                        current.remove(operation.getKey(), timeStamp);
+                    } else {
+                        current.upsert(operation.getKey(), value, timeStamp);
+                    }
+                }
+            } finally {
+                sequence.publish(timeStamp);
+                for (final WriteBatch.Operation operation : batch.getOperations()) {
+                    rowCache.invalidate(operation.getKey());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        flushIfFull(current);
     }
 
-    @Override
-    public void compact() throws IOException {
+    /**
+     * Slows down or stops the writer according to background work backlog.
+     */
+    private void throttle() throws IOException {
+        if (writeController.shouldStop(tables)) {
+            final long start = System.nanoTime();
+            lock.writeLock().lock();
+            try {
+                while (writeController.shouldStop(tables)) {
+                    awaitFlush();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            writeController.recordStop(System.nanoTime() - start);
+        }
+
+        final long delay = writeController.delayNanos(tables);
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+            writeController.recordDelay(delay);
+        }
+    }
+
+    /**
+     * Returns counters of writes throttled because of background work backlog.
+     */
+    public WriteController.Stats getWriteStats() {
+        return writeController.getStats();
+    }
+
+    private void flushIfFull(final MutableTable written) throws IOException {
+        if (written.getSize() <= allowableMemTableSize) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            checkFlushError();
+
+            // Stall only if the flush queue is full
+            while (tables.getMemTable() == written
+                    && tables.getFlushing().size() >= config.getMaxPendingFlushes()) {
+                awaitFlush();
+            }
+
+            // Another writer could have frozen this table already.
+            if (tables.getMemTable() == written) {
+                scheduleFlush();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Freezes current memtable and hands it to the flusher thread.
+     * Must be called under the write lock.
+     */
+    private void scheduleFlush() throws IOException {
+        final MutableTable frozen = tables.getMemTable();
+        final WriteAheadLog.Segment segment = wal.rotate();
+        tables = tables.freeze(createMemTable(++versionCounter));
+        flusher.execute(() -> flush(frozen, segment));
+    }
+
+    private void flush(final MutableTable frozen, final WriteAheadLog.Segment segment) {
+        DebugUtils.flushInfo(frozen);
+
+        try {
+            final SSTable ssTable = SSTable.flush(
+                    tablesDir,
+                    frozen.iterator(MIN_BYTE_BUFFER),
+                    frozen.getKeyCount(),
+                    frozen.getVersion(),
+                    List.of(),
+                    SSTable.FLUSHED_LEVEL,
+                    readerPolicy,
+                    config,
+                    blockCache);
+
+            lock.writeLock().lock();
+            try {
+                tables = tables.flushed(frozen, ssTable);
+                flushDone.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            wal.retire(segment);
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to flush table " + frozen.getVersion(), e);
+            backgroundFailed(e);
+            return;
+        }
+
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Hands compaction to the compactor thread unless it is already queued there.
+     */
+    private void scheduleCompactionIfNeeded() {
+        if (needsCompaction() && compactionQueued.compareAndSet(false, true)) {
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    private boolean needsCompaction() {
+        final TableSet current = tables;
+        return current.getSSTables().size() >= config.getCompactionTrigger()
+                || current.getCompactionDebt() >= config.getSlowdownCompactionDebt();
+    }
+
+    private void compactInBackground() {
+        // Tables flushed from now on are compacted next time
+        compactionQueued.set(false);
+        if (!needsCompaction()) {
+            return;
+        }
+        try {
+            compactTables();
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to compact tables", e);
+            backgroundFailed(e);
+        }
+    }
 
-        final Path actualFile = SSTable.writeTable(
+    /**
+     * Merges all SSTables into one, which keeps the newest version of them.
+     * Runs on the compactor thread, tables flushed meanwhile are newer and stay as they are.
+     * The result lists versions of the merged tables, so the ones which outlive it in a crash are dropped on start,
+     * see {@link SSTable#findVersions(Path, ReaderPolicy, BlockCache)}.
+     */
+    private void compactTables() throws IOException {
+        final List<SSTable> compacted = tables.getSSTables();
+        if (compacted.isEmpty()) {
+            return;
+        }
+
+        long version = 0;
+        // Keys of several tables may be the same, so the result has at most this many cells
+        long cellCount = 0;
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final SSTable ssTable : compacted) {
+            version = Math.max(version, ssTable.getVersion());
+            cellCount += ssTable.getRowCount();
+            iterators.add(ssTable.iterator(MIN_BYTE_BUFFER));
+        }
+        // The result takes the place of the newest table
+        final List<Long> replaced = new ArrayList<>(compacted.size());
+        for (final SSTable ssTable : compacted) {
+            if (ssTable.getVersion() != version) {
+                replaced.add(ssTable.getVersion());
+            }
+        }
+
+        final SSTable result = SSTable.flush(
                 tablesDir,
-                cellIterator(MIN_BYTE_BUFFER, false),
-                memTable.getVersion());
+                TableSet.merge(iterators),
+                cellCount,
+                version,
+                replaced,
+                SSTable.COMPACTED_LEVEL,
+                readerPolicy,
+                config,
+                blockCache);
 
-        closeSSTables();
-        SSTable.removeOldVersionsAndResetCounter(tablesDir, actualFile);
-        ssTableList = SSTable.findVersions(tablesDir, SSTABLE_IMPL);
+        // The newest table's file is already replaced by the result. Other files go before the set changes,
+        // so the directory never holds more tables than the set, readers keep reading the unlinked files
+        for (final SSTable ssTable : compacted) {
+            if (ssTable.getVersion() != version) {
+                ssTable.deleteFile();
+            }
+        }
 
-        assert ssTableList.size() == SSTable.MIN_TABLE_VERSION;
-        versionCounter = SSTable.MIN_TABLE_VERSION;
+        lock.writeLock().lock();
+        try {
+            tables = tables.compacted(compacted, result);
+            flushDone.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-        memTable.setVersion(++versionCounter);
+        for (final SSTable ssTable : compacted) {
+            ssTable.release();
+        }
     }
 
-    private void closeSSTables() throws IOException {
-        for (final SSTable t : ssTableList) {
-            if (t instanceof SSTableFileChannel) {
-                ((SSTableFileChannel) t).close();
+    /**
+     * Reopens SSTables whose reader doesn't suit their reads since the previous check.
+     * Runs on the compactor thread, so tables aren't compacted meanwhile.
+     * A table which can't be reopened keeps its reader.
+     */
+    private void adaptReaders() {
+        final long now = System.nanoTime();
+        final double seconds = (double) (now - lastReaderCheck) / TimeUnit.SECONDS.toNanos(1);
+        lastReaderCheck = now;
+
+        for (final SSTable ssTable : tables.getSSTables()) {
+            final double readRate = ssTable.takeReads() / seconds;
+            final SSTable.Implementation impl = readerPolicy.choose(
+                    ssTable.getSize(),
+                    ssTable.getImplementation(),
+                    readRate);
+            if (impl == ssTable.getImplementation()) {
+                continue;
+            }
+
+            try {
+                final SSTable reopened = ssTable.reopen(impl, blockCache);
+                lock.writeLock().lock();
+                try {
+                    tables = tables.replaced(ssTable, reopened);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                // Readers which hold the table finish with the old reader
+                ssTable.release();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to reopen table " + ssTable.getVersion() + " with " + impl, e);
             }
         }
     }
 
+    private void backgroundFailed(final Exception e) {
+        lock.writeLock().lock();
+        try {
+            flushError = e;
+            flushDone.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until a flush or compaction finishes.
+     * Must be called under the write lock.
+     *
+     * @throws IOException if a flush or compaction has failed, nothing would signal the wait then
+     */
+    private void awaitFlush() throws IOException {
+        checkFlushError();
+        try {
+            flushDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        }
+        checkFlushError();
+    }
+
+    /**
+     * Waits until the flush queue is empty.
+     * Must be called under the write lock.
+     */
+    private void awaitFlushes() throws IOException {
+        while (!tables.getFlushing().isEmpty()) {
+            awaitFlush();
+        }
+    }
+
+    /**
+     * Runs the task on the flusher thread after the flushes queued before it, so tests can hold flushes back.
+     */
+    Future<?> submitToFlusher(final Runnable task) {
+        return flusher.submit(task);
+    }
+
+    /**
+     * Runs the task on the compactor thread after the compactions queued before it.
+     */
+    Future<?> submitToCompactor(final Runnable task) {
+        return compactor.submit(task);
+    }
+
+    /**
+     * Returns count of frozen memtables which aren't flushed yet.
+     */
+    int getPendingFlushes() {
+        return tables.getFlushing().size();
+    }
+
+    private void checkFlushError() throws IOException {
+        if (flushError != null) {
+            throw new IOException("Background flush or compaction failed", flushError);
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        // Tables of pending flushes are compacted too
+        lock.writeLock().lock();
+        try {
+            checkFlushError();
+            awaitFlushes();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        final Future<?> compaction = compactor.submit(() -> {
+            compactTables();
+            return null;
+        });
+
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compact tables", e.getCause());
+        }
+    }
+
+    private void closeSSTables() {
+        for (final SSTable t : tables.getSSTables()) {
+            t.release();
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        if (memTable.getSize() != 0) {
-            flush();
+        // Tables which failed to flush stay in the write-ahead log and are recovered on the next start
+        IOException flushFailure = null;
+        lock.writeLock().lock();
+        try {
+            if (flushError == null && tables.getMemTable().getSize() != 0) {
+                scheduleFlush();
+            }
+            awaitFlushes();
+        } catch (IOException e) {
+            flushFailure = e;
+        } finally {
+            lock.writeLock().unlock();
+            flusher.shutdown();
+        }
+
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            // Flushes may have queued a compaction, so the compactor stops after them
+            compactor.shutdown();
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background threads");
+        } finally {
+            compactor.shutdown();
+            try {
+                wal.close();
+            } finally {
+                closeSSTables();
+            }
+        }
+        if (flushFailure != null) {
+            throw flushFailure;
         }
-        closeSSTables();
     }
 }
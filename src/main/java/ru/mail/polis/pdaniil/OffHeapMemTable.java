@@ -0,0 +1,569 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory table which keeps keys, values and index in direct memory slabs.
+ *
+ * <p>The index is a lock-free skip list whose nodes live in the slabs next to the keys,
+ * so the heap only holds a few slab buffers however many entries the table has.
+ * Nodes are addressed by {@code long} (slab index in high 32 bits, offset in low 32 bits).</p>
+ *
+ * <p>Node layout:
+ * - value address (8 bytes)
+ * - keySize (4 bytes)
+ * - height (4 bytes)
+ * - next node addresses (height * 8 bytes)
+ * - key ("keySize" bytes)</p>
+ *
+ * <p>Value layout:
+ * - sequence number (8 bytes)
+ * - previous value address (8 bytes)
+ * - valueSize (4 bytes, -1 for tombstone)
+ * - value ("valueSize" bytes)</p>
+ *
+ * <p>Values of a key form a chain ordered by sequence number, newest first,
+ * so readers of an older sequence number still find their version.</p>
+ */
+public class OffHeapMemTable implements MutableTable {
+
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+    private static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_HEIGHT = 16;
+    private static final int BRANCHING = 4;
+
+    private static final int NODE_VALUE = 0;
+    private static final int NODE_KEY_SIZE = NODE_VALUE + Long.BYTES;
+    private static final int NODE_HEIGHT = NODE_KEY_SIZE + Integer.BYTES;
+    private static final int NODE_NEXT = NODE_HEIGHT + Integer.BYTES;
+
+    private static final int VALUE_TIMESTAMP = 0;
+    private static final int VALUE_PREVIOUS = VALUE_TIMESTAMP + Long.BYTES;
+    private static final int VALUE_SIZE = VALUE_PREVIOUS + Long.BYTES;
+    private static final int VALUE_DATA = VALUE_SIZE + Integer.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+
+    // Head node always occupies the very first address and is never referenced by other nodes
+    private static final long HEAD = 0;
+    private static final long NIL = 0;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final int slabSize;
+    private final Object slabLock = new Object();
+    private volatile Slab[] slabs = new Slab[0];
+    private volatile Slab current;
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final AtomicInteger height = new AtomicInteger(1);
+    private volatile long version;
+
+    /**
+     * Implementation of in-memory table in direct memory.
+     * Safe for concurrent writers and readers, iterators are weakly consistent.
+     *
+     * @param version version of current table
+     * @param sizeHint expected size of the table, used to choose slab size
+     */
+    public OffHeapMemTable(final long version, final long sizeHint) {
+        this.version = version;
+        this.slabSize = slabSize(sizeHint);
+
+        addSlab(slabSize);
+        final long head = allocateNode(ByteBuffer.allocate(0), MAX_HEIGHT);
+        assert head == HEAD;
+
+        // Empty table has zero size
+        size.set(0);
+    }
+
+    /**
+     * Estimates direct memory taken by a table which is frozen once it grows past the size.
+     * The write which takes the table past it may start one more slab.
+     *
+     * @param sizeHint size of the table which triggers flush
+     * @return count of bytes of the slabs
+     */
+    static long maxDirectMemory(final long sizeHint) {
+        return sizeHint + slabSize(sizeHint);
+    }
+
+    private static int slabSize(final long sizeHint) {
+        return (int) Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, sizeHint));
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long timeStamp) {
+        final long first = findGreaterOrEqual(from, null, null);
+
+        return new Iterator<>() {
+
+            private long node = first;
+            private long value = skipInvisible();
+
+            /**
+             * Moves to the first node which has a version visible at the sequence number.
+             */
+            private long skipInvisible() {
+                while (node != NIL) {
+                    final long visible = findVisible(node, timeStamp);
+                    if (visible != NIL) {
+                        return visible;
+                    }
+                    node = getNext(node, 0);
+                }
+                return NIL;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells in table");
+                }
+                final Cell cell = toCell(node, value);
+                node = getNext(node, 0);
+                value = skipInvisible();
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Nodes link only forward, so every step back searches the predecessor from the top of the list.
+     */
+    @Override
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer from, final long timeStamp) {
+        final long first = findLess(from, true);
+
+        return new Iterator<>() {
+
+            private long node = first;
+            private long value = skipInvisible();
+
+            /**
+             * Moves back to the first node which has a version visible at the sequence number.
+             */
+            private long skipInvisible() {
+                while (node != NIL) {
+                    final long visible = findVisible(node, timeStamp);
+                    if (visible != NIL) {
+                        return visible;
+                    }
+                    node = findLess(key(node), false);
+                }
+                return NIL;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells in table");
+                }
+                final Cell cell = toCell(node, value);
+                node = findLess(cell.getKey(), false);
+                value = skipInvisible();
+                return cell;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long timeStamp) {
+        final long node = findGreaterOrEqual(key, null, null);
+        if (node == NIL || compareKey(node, key) != 0) {
+            return null;
+        }
+        final long value = findVisible(node, timeStamp);
+        return value == NIL ? null : toCell(node, value);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long timeStamp) {
+        final long valueAddress = allocate(VALUE_DATA + value.remaining());
+        final ByteBuffer buffer = buffer(valueAddress);
+        final int offset = offset(valueAddress);
+        buffer.putLong(offset + VALUE_TIMESTAMP, timeStamp);
+        buffer.putInt(offset + VALUE_SIZE, value.remaining());
+        copy(value, buffer, offset + VALUE_DATA);
+
+        insert(key, valueAddress, timeStamp);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key, final long timeStamp) {
+        final long valueAddress = allocate(VALUE_DATA);
+        final ByteBuffer buffer = buffer(valueAddress);
+        final int offset = offset(valueAddress);
+        buffer.putLong(offset + VALUE_TIMESTAMP, timeStamp);
+        buffer.putInt(offset + VALUE_SIZE, TOMBSTONE_SIZE);
+
+        insert(key, valueAddress, timeStamp);
+    }
+
+    /**
+     * Returns count of bytes taken in the slabs by entries: keys, values and their index nodes.
+     */
+    @Override
+    public long getSize() {
+        return size.get();
+    }
+
+    @Override
+    public int getKeyCount() {
+        return keyCount.get();
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(final long version) {
+        this.version = version;
+    }
+
+    private void insert(final ByteBuffer key, final long valueAddress, final long timeStamp) {
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+
+        long node = NIL;
+        int nodeHeight = 0;
+
+        // Link at the bottom level, which makes the node visible
+        while (true) {
+            final long found = findGreaterOrEqual(key, preds, succs);
+            if (found != NIL && compareKey(found, key) == 0) {
+                insertVersion(found, valueAddress, timeStamp);
+                return;
+            }
+
+            if (node == NIL) {
+                nodeHeight = randomHeight();
+                node = allocateNode(key, nodeHeight);
+                setValue(node, valueAddress);
+                raiseHeight(nodeHeight);
+            }
+
+            for (int level = 0; level < nodeHeight; level++) {
+                setNext(node, level, succs[level]);
+            }
+
+            if (casNext(preds[0], 0, succs[0], node)) {
+                keyCount.incrementAndGet();
+                break;
+            }
+        }
+
+        // Upper levels only speed up search, so they may be linked later
+        for (int level = 1; level < nodeHeight; level++) {
+            while (!casNext(preds[level], level, succs[level], node)) {
+                findGreaterOrEqual(key, preds, succs);
+                setNext(node, level, succs[level]);
+            }
+        }
+    }
+
+    /**
+     * Links value into the chain of the node keeping it ordered by sequence number.
+     * Concurrent writers of a key may come out of order, then the value is linked deeper.
+     */
+    private void insertVersion(final long node, final long valueAddress, final long timeStamp) {
+        while (true) {
+            long pred = NIL;
+            long current = getValue(node);
+            while (current != NIL && getTimeStamp(current) > timeStamp) {
+                pred = current;
+                current = getPrevious(current);
+            }
+
+            final long expected = current;
+            if (current != NIL && getTimeStamp(current) == timeStamp) {
+                // Later write of the same batch replaces the version
+                current = getPrevious(current);
+            }
+            setPrevious(valueAddress, current);
+
+            final boolean linked = pred == NIL
+                    ? casValue(node, expected, valueAddress)
+                    : casPrevious(pred, expected, valueAddress);
+            if (linked) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns address of the newest value of the node written not after given sequence number.
+     */
+    private long findVisible(final long node, final long timeStamp) {
+        long current = getValue(node);
+        while (current != NIL && getTimeStamp(current) > timeStamp) {
+            current = getPrevious(current);
+        }
+        return current;
+    }
+
+    /**
+     * Finds the first node with key greater or equal to given one.
+     * If arrays are passed, fills them with predecessors and successors of the key at every level.
+     */
+    private long findGreaterOrEqual(final ByteBuffer key, final long[] preds, final long[] succs) {
+        final int top = height.get() - 1;
+        if (preds != null) {
+            for (int level = top + 1; level < MAX_HEIGHT; level++) {
+                preds[level] = HEAD;
+                succs[level] = NIL;
+            }
+        }
+
+        long node = HEAD;
+        int level = top;
+        while (true) {
+            final long next = getNext(node, level);
+            if (next != NIL && compareKey(next, key) < 0) {
+                node = next;
+            } else {
+                if (preds != null) {
+                    preds[level] = node;
+                    succs[level] = next;
+                }
+                if (level == 0) {
+                    return next;
+                }
+                level--;
+            }
+        }
+    }
+
+    /**
+     * Finds the last node with key less than given one, or not greater if inclusive.
+     *
+     * @return the node or {@link #NIL} if there is none, null key finds the last node
+     */
+    private long findLess(@Nullable final ByteBuffer key, final boolean inclusive) {
+        long node = HEAD;
+        int level = height.get() - 1;
+        while (true) {
+            final long next = getNext(node, level);
+            if (next != NIL && (key == null || compareKey(next, key) < (inclusive ? 1 : 0))) {
+                node = next;
+            } else if (level == 0) {
+                return node;
+            } else {
+                level--;
+            }
+        }
+    }
+
+    private void raiseHeight(final int nodeHeight) {
+        int current = height.get();
+        while (nodeHeight > current && !height.compareAndSet(current, nodeHeight)) {
+            current = height.get();
+        }
+    }
+
+    private static int randomHeight() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int nodeHeight = 1;
+        while (nodeHeight < MAX_HEIGHT && random.nextInt(BRANCHING) == 0) {
+            nodeHeight++;
+        }
+        return nodeHeight;
+    }
+
+    private ByteBuffer key(final long node) {
+        final ByteBuffer nodeBuffer = buffer(node);
+        return slice(nodeBuffer, keyOffset(node), nodeBuffer.getInt(offset(node) + NODE_KEY_SIZE));
+    }
+
+    private Cell toCell(final long node, final long valueAddress) {
+        final ByteBuffer key = key(node);
+
+        final ByteBuffer valueBuffer = buffer(valueAddress);
+        final int valueOffset = offset(valueAddress);
+        final long timeStamp = valueBuffer.getLong(valueOffset + VALUE_TIMESTAMP);
+        final int valueSize = valueBuffer.getInt(valueOffset + VALUE_SIZE);
+
+        if (valueSize == TOMBSTONE_SIZE) {
+            return Cell.create(key, Value.tombstone(timeStamp), version);
+        } else {
+            final ByteBuffer value = slice(valueBuffer, valueOffset + VALUE_DATA, valueSize);
+            return Cell.create(key, Value.of(timeStamp, value), version);
+        }
+    }
+
+    /**
+     * Compares key of the node with given key the same way as {@link ByteBuffer#compareTo(ByteBuffer)} does.
+     */
+    private int compareKey(final long node, final ByteBuffer key) {
+        final ByteBuffer buffer = buffer(node);
+        final int keyOffset = keyOffset(node);
+        final int keySize = buffer.getInt(offset(node) + NODE_KEY_SIZE);
+
+        final int length = Math.min(keySize, key.remaining());
+        final int position = key.position();
+        for (int i = 0; i < length; i++) {
+            final int compare = Byte.compare(buffer.get(keyOffset + i), key.get(position + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(keySize, key.remaining());
+    }
+
+    private long allocateNode(final ByteBuffer key, final int nodeHeight) {
+        final long node = allocate(NODE_NEXT + Long.BYTES * nodeHeight + key.remaining());
+        final ByteBuffer buffer = buffer(node);
+        final int offset = offset(node);
+        buffer.putInt(offset + NODE_KEY_SIZE, key.remaining());
+        buffer.putInt(offset + NODE_HEIGHT, nodeHeight);
+        copy(key, buffer, keyOffset(node));
+        return node;
+    }
+
+    private int keyOffset(final long node) {
+        final int offset = offset(node);
+        return offset + NODE_NEXT + Long.BYTES * buffer(node).getInt(offset + NODE_HEIGHT);
+    }
+
+    private long getNext(final long node, final int level) {
+        return (long) LONGS.getAcquire(buffer(node), offset(node) + NODE_NEXT + Long.BYTES * level);
+    }
+
+    private void setNext(final long node, final int level, final long next) {
+        LONGS.setRelease(buffer(node), offset(node) + NODE_NEXT + Long.BYTES * level, next);
+    }
+
+    private boolean casNext(final long node, final int level, final long expected, final long next) {
+        return LONGS.compareAndSet(buffer(node), offset(node) + NODE_NEXT + Long.BYTES * level, expected, next);
+    }
+
+    private long getValue(final long node) {
+        return (long) LONGS.getAcquire(buffer(node), offset(node) + NODE_VALUE);
+    }
+
+    private void setValue(final long node, final long valueAddress) {
+        LONGS.setRelease(buffer(node), offset(node) + NODE_VALUE, valueAddress);
+    }
+
+    private boolean casValue(final long node, final long expected, final long valueAddress) {
+        return LONGS.compareAndSet(buffer(node), offset(node) + NODE_VALUE, expected, valueAddress);
+    }
+
+    private long getTimeStamp(final long valueAddress) {
+        return buffer(valueAddress).getLong(offset(valueAddress) + VALUE_TIMESTAMP);
+    }
+
+    private long getPrevious(final long valueAddress) {
+        return (long) LONGS.getAcquire(buffer(valueAddress), offset(valueAddress) + VALUE_PREVIOUS);
+    }
+
+    private void setPrevious(final long valueAddress, final long previous) {
+        LONGS.setRelease(buffer(valueAddress), offset(valueAddress) + VALUE_PREVIOUS, previous);
+    }
+
+    private boolean casPrevious(final long valueAddress, final long expected, final long previous) {
+        return LONGS.compareAndSet(buffer(valueAddress), offset(valueAddress) + VALUE_PREVIOUS, expected, previous);
+    }
+
+    /**
+     * Takes space for a new record in the current slab or starts a new one.
+     *
+     * @param bytes record size
+     * @return address of the record, aligned to 8 bytes
+     */
+    private long allocate(final int bytes) {
+        final int aligned = (bytes + Long.BYTES - 1) & -Long.BYTES;
+
+        while (true) {
+            final Slab slab = current;
+            final int offset = slab.top.getAndAdd(aligned);
+            if (offset >= 0 && offset <= slab.buffer.capacity() - aligned) {
+                size.addAndGet(aligned);
+                return ((long) slab.index << Integer.SIZE) | offset;
+            }
+
+            synchronized (slabLock) {
+                if (current == slab) {
+                    addSlab(Math.max(slabSize, aligned));
+                }
+            }
+        }
+    }
+
+    private void addSlab(final int capacity) {
+        final Slab[] newSlabs = new Slab[slabs.length + 1];
+        System.arraycopy(slabs, 0, newSlabs, 0, slabs.length);
+
+        final Slab slab = new Slab(slabs.length, capacity);
+        newSlabs[slab.index] = slab;
+
+        slabs = newSlabs;
+        current = slab;
+    }
+
+    private ByteBuffer buffer(final long address) {
+        return slabs[(int) (address >>> Integer.SIZE)].buffer;
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static void copy(final ByteBuffer src, final ByteBuffer dst, final int offset) {
+        final ByteBuffer target = dst.duplicate();
+        target.position(offset);
+        target.put(src.duplicate());
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    private static final class Slab {
+
+        private final int index;
+        private final ByteBuffer buffer;
+        private final AtomicInteger top = new AtomicInteger();
+
+        private Slab(final int index, final int capacity) {
+            this.index = index;
+            // Atomic access to node links needs 8-byte alignment
+            this.buffer = ByteBuffer.allocateDirect(capacity + Long.BYTES).alignedSlice(Long.BYTES);
+        }
+    }
+}
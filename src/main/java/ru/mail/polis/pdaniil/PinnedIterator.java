@@ -0,0 +1,48 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+
+/**
+ * Iterator which holds tables it reads from.
+ * They are released once the iterator is exhausted, or when it becomes unreachable
+ * if the caller stops early.
+ */
+final class PinnedIterator<E> implements Iterator<E> {
+
+    /* Shared by other holders of pinned tables */
+    static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<E> delegate;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Wraps iterator over pinned tables.
+     *
+     * @param delegate iterator to wrap
+     * @param release action releasing the tables, must not reference the iterator
+     */
+    PinnedIterator(
+            @NotNull final Iterator<E> delegate,
+            @NotNull final Runnable release) {
+        this.delegate = delegate;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    @Override
+    public boolean hasNext() {
+        final boolean hasNext = delegate.hasNext();
+        if (!hasNext) {
+            // Runs release at most once
+            cleanable.clean();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public E next() {
+        return delegate.next();
+    }
+}
@@ -0,0 +1,190 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator over records of a key range of retained tables.
+ * The range is split at keys sampled from SSTables, so parallel streams merge its parts concurrently
+ * and every part reads only its own slice of each table.
+ *
+ * <p>Tables are released once every part is read till the end, when the stream is closed,
+ * or when all parts become unreachable.</p>
+ */
+final class RangeSpliterator implements Spliterator<Record> {
+
+    /* Parts per thread of the common pool, so threads which finish early take more work */
+    private static final int PARTS_PER_THREAD = 4;
+
+    private final TableSet tables;
+    private final long timeStamp;
+    private final Pin pin;
+    @Nullable
+    private final ByteBuffer to;
+    private ByteBuffer from;
+    /* Keys inside of the range where it may be split */
+    private List<ByteBuffer> splits;
+    /* Null until the part is read */
+    @Nullable
+    private Iterator<Cell> cells;
+    private boolean finished;
+
+    private RangeSpliterator(
+            final TableSet tables,
+            final long timeStamp,
+            final Pin pin,
+            final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final List<ByteBuffer> splits) {
+        this.tables = tables;
+        this.timeStamp = timeStamp;
+        this.pin = pin;
+        this.from = from;
+        this.to = to;
+        this.splits = splits;
+    }
+
+    /**
+     * Creates sequential stream over records of the range, which may be made parallel.
+     *
+     * @param tables tables retained by the caller
+     * @param timeStamp sequence number of the last visible write
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return stream releasing the tables when closed
+     * @throws IOException if unable to sample keys of SSTables, the tables are released then
+     */
+    static Stream<Record> stream(
+            final TableSet tables,
+            final long timeStamp,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        final List<ByteBuffer> splits;
+        try {
+            splits = tables.splitKeys(from, to, ForkJoinPool.getCommonPoolParallelism() * PARTS_PER_THREAD);
+        } catch (IOException | RuntimeException e) {
+            tables.releaseSSTables();
+            throw e;
+        }
+
+        final Pin pin = new Pin();
+        pin.cleanable = PinnedIterator.CLEANER.register(pin, tables::releaseSSTables);
+        return StreamSupport.stream(new RangeSpliterator(tables, timeStamp, pin, from, to, splits), false)
+                .onClose(pin.cleanable::clean);
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super Record> action) {
+        final Iterator<Cell> current = open();
+        if (current.hasNext()) {
+            action.accept(TableSet.toRecord(current.next()));
+            return true;
+        }
+        finish();
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super Record> action) {
+        final Iterator<Cell> current = open();
+        while (current.hasNext()) {
+            action.accept(TableSet.toRecord(current.next()));
+        }
+        finish();
+    }
+
+    /**
+     * Splits off the lower half of the range, parts which are being read are not split.
+     */
+    @Nullable
+    @Override
+    public Spliterator<Record> trySplit() {
+        if (cells != null || splits.isEmpty()) {
+            return null;
+        }
+
+        final int middle = splits.size() / 2;
+        final ByteBuffer key = splits.get(middle);
+        final RangeSpliterator lower = new RangeSpliterator(
+                tables,
+                timeStamp,
+                pin,
+                from,
+                key,
+                splits.subList(0, middle));
+        pin.parts.incrementAndGet();
+        from = key;
+        splits = splits.subList(middle + 1, splits.size());
+        return lower;
+    }
+
+    /**
+     * Size is unknown, so streams split the range at every sampled key.
+     */
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * Records are in their natural order.
+     */
+    @Nullable
+    @Override
+    public Comparator<? super Record> getComparator() {
+        return null;
+    }
+
+    private Iterator<Cell> open() {
+        if (cells == null) {
+            try {
+                cells = tables.cellIterator(from, to, timeStamp);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return cells;
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        cells = Collections.emptyIterator();
+        if (pin.parts.decrementAndGet() == 0) {
+            pin.cleanable.clean();
+        }
+    }
+
+    /**
+     * Shared by all parts of the range, the tables are released when it is unreachable.
+     */
+    private static final class Pin {
+
+        /* Parts which are not read till the end */
+        private final AtomicInteger parts = new AtomicInteger(1);
+        private Cleaner.Cleanable cleanable;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.mail.polis.pdaniil;
+
+/**
+ * Chooses how every SSTable is read, see {@link Config.Builder#sstableImplementation(SSTable.Implementation)}.
+ *
+ * <p>In {@link SSTable.Implementation#ADAPTIVE} mode small tables which are read often are memory mapped,
+ * so their reads are served by the page cache without system calls and copies.
+ * Big tables and cold ones are read through {@link java.nio.channels.FileChannel},
+ * so they take neither address space nor page cache beyond the blocks being read.
+ * Freshly flushed tables hold the newest keys and are expected to be hot,
+ * other tables are expected to be cold until their reads are observed.</p>
+ */
+final class ReaderPolicy {
+
+    private final SSTable.Implementation implementation;
+    private final long mmapTableSize;
+    private final double hotReadRate;
+
+    ReaderPolicy(final Config config) {
+        this.implementation = config.getSSTableImplementation();
+        this.mmapTableSize = config.getMmapTableSize();
+        this.hotReadRate = config.getHotTableReadRate();
+    }
+
+    /** Whether readers of tables may change while they are open. */
+    boolean isAdaptive() {
+        return implementation == SSTable.Implementation.ADAPTIVE;
+    }
+
+    /**
+     * Chooses reader of a table which is opened for the first time.
+     *
+     * @param size size of the table file
+     * @param level {@link SSTable#FLUSHED_LEVEL} or {@link SSTable#COMPACTED_LEVEL}
+     * @return reader of the table
+     */
+    SSTable.Implementation choose(final long size, final int level) {
+        if (!isAdaptive()) {
+            return implementation;
+        }
+        if (size > mmapTableSize) {
+            return SSTable.Implementation.FILE_CHANNEL_READ;
+        }
+        return level == SSTable.FLUSHED_LEVEL
+                ? SSTable.Implementation.MMAPPED
+                : SSTable.Implementation.FILE_CHANNEL_READ;
+    }
+
+    /**
+     * Chooses reader of an open table by its observed reads.
+     *
+     * @param size size of the table file
+     * @param current current reader of the table
+     * @param readRate reads of the table per second
+     * @return reader of the table, the current one if it shouldn't change
+     */
+    SSTable.Implementation choose(final long size, final SSTable.Implementation current, final double readRate) {
+        if (!isAdaptive()) {
+            return implementation;
+        }
+        if (size > mmapTableSize) {
+            return SSTable.Implementation.FILE_CHANNEL_READ;
+        }
+        if (readRate >= hotReadRate) {
+            return SSTable.Implementation.MMAPPED;
+        }
+        // Tables read at about the threshold rate don't switch back and forth
+        if (readRate < hotReadRate / 2) {
+            return SSTable.Implementation.FILE_CHANNEL_READ;
+        }
+        return current;
+    }
+}
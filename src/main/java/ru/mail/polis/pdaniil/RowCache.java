@@ -0,0 +1,221 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of results of point lookups, values of keys or their absence,
+ * limited by total size of cached keys and values.
+ *
+ * <p>Eviction is CLOCK: a hit marks the row, eviction gives marked rows another pass
+ * and drops unmarked ones. Lookups take no locks, eviction is done by one writer at a time.</p>
+ *
+ * <p>A lookup may read the value right before a write to the key and cache it after the write
+ * invalidated the key. So writes stamp stripes of keys with a counter of invalidations,
+ * and a lookup drops its row if the stripe was stamped after the lookup took its ticket.</p>
+ */
+public final class RowCache {
+
+    /* Estimated heap overhead of a row: map node, entry, key, row and buffer headers */
+    private static final int ROW_OVERHEAD = 160;
+    private static final int STRIPES = 4096;
+
+    private final long capacity;
+    private final Map<ByteBuffer, Row> rows = new ConcurrentHashMap<>();
+    private final Queue<Row> clock = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    /* The last invalidation of keys of the stripe */
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    RowCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Finds cached result of lookup of the key.
+     *
+     * @param key key to find
+     * @return row or null if the key is not cached
+     */
+    @Nullable
+    Row get(final ByteBuffer key) {
+        final Row row = rows.get(key);
+        if (row == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!row.referenced) {
+            row.referenced = true;
+        }
+        return row;
+    }
+
+    /**
+     * Takes ticket for lookup of a key which is not cached, must be taken before the lookup reads tables.
+     */
+    long ticket() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches result of lookup unless the key was written since the ticket was taken.
+     *
+     * @param key key of the lookup
+     * @param value found value or null if the key is absent
+     * @param ticket ticket taken before the lookup, see {@link #ticket()}
+     */
+    void put(final ByteBuffer key, @Nullable final ByteBuffer value, final long ticket) {
+        if (stamps.get(stripe(key)) > ticket) {
+            return;
+        }
+
+        final Row row = new Row(copy(key), value == null ? null : copy(value));
+        if (rows.putIfAbsent(row.key, row) != null) {
+            return;
+        }
+        clock.add(row);
+        final long newSize = size.addAndGet(row.size());
+        // Checked after the row is visible, so either the writer or this lookup unlinks it
+        if (stamps.get(stripe(key)) > ticket) {
+            rows.remove(row.key, row);
+        }
+        if (newSize > capacity) {
+            evict();
+        }
+    }
+
+    /**
+     * Drops cached result of the key, must be called after the write is visible to lookups.
+     *
+     * @param key written key
+     */
+    void invalidate(final ByteBuffer key) {
+        if (capacity == 0) {
+            return;
+        }
+        final long stamp = invalidations.incrementAndGet();
+        stamps.accumulateAndGet(stripe(key), stamp, Math::max);
+        // The row stays in the clock and is counted until eviction gets to it
+        rows.remove(key);
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            // Another lookup is evicting
+            return;
+        }
+        try {
+            while (size.get() > capacity) {
+                final Row row = clock.poll();
+                if (row == null) {
+                    return;
+                }
+                if (rows.get(row.key) == row && row.referenced) {
+                    row.referenced = false;
+                    clock.add(row);
+                    continue;
+                }
+                if (rows.remove(row.key, row)) {
+                    evictions.increment();
+                }
+                size.addAndGet(-row.size());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static int stripe(final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    /** Byte budget of the cache, 0 means no caching. */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** Estimated heap taken by cached rows, including invalidated rows not yet dropped by eviction. */
+    public long getSize() {
+        return size.get();
+    }
+
+    /** Lookups answered by the cache. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Lookups which had to read tables. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Share of lookups answered by the cache, 0 if there were none. */
+    public double getHitRate() {
+        final long hitCount = getHits();
+        final long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /** Rows dropped to fit into the budget. */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size " + getSize() + " of " + getCapacity()
+                + ", hit rate " + getHitRate() + ", evictions " + getEvictions();
+    }
+
+    /**
+     * Cached result of lookup of a key.
+     */
+    static final class Row {
+
+        private final ByteBuffer key;
+        @Nullable
+        private final ByteBuffer value;
+        /* Hit since the last pass of the clock, updates may race and get lost */
+        private volatile boolean referenced;
+
+        Row(final ByteBuffer key, @Nullable final ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /** Value of the key or null if the key is absent. */
+        @Nullable
+        ByteBuffer getValue() {
+            return value == null ? null : value.asReadOnlyBuffer();
+        }
+
+        int size() {
+            return ROW_OVERHEAD + key.remaining() + (value == null ? 0 : value.remaining());
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package ru.mail.polis.pdaniil;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -14,15 +17,34 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class SSTable implements Table {
 
-    protected static final int MIN_TABLE_VERSION = 1;
+    private static final Logger log = LoggerFactory.getLogger(SSTable.class);
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /* Sizes of footer sections are ints, bigger tables search by whole keys */
+    private static final int MAX_KEY_PREFIXES = (Integer.MAX_VALUE / 2) / Long.BYTES;
+    /* Rows between sampled keys of tables without blocks */
+    private static final int SAMPLE_ROWS = 64;
+    /* Longer keys are cut in the key range, so huge keys don't stay in memory for every table */
+    private static final int MAX_KEY_BOUND_LENGTH = 64;
+
     protected static final String TABLE_FILE_SUFFIX = ".dat";
     protected static final String TABLE_TMP_FILE_SUFFIX = ".tmp";
     protected static final String TABLE_FILE_PREFIX = "table_";
@@ -32,9 +54,63 @@ public abstract class SSTable implements Table {
     protected final long size;
     protected final long version;
 
-    enum Implementation {
+    /* The storage holds one reference, readers take more while iterating */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    @Nullable
+    private BloomFilter filter;
+
+    /* Filter of key prefixes of fixed length */
+    @Nullable
+    private BloomFilter prefixFilter;
+    private int prefixLength;
+
+    /* Tables with per-cell offsets have no block index */
+    @Nullable
+    private BlockIndex blockIndex;
+
+    /* Packed first bytes of keys of tables without blocks, tables written before they were stored have none */
+    @Nullable
+    private long[] keyPrefixes;
+
+    /*
+     * Bounds of keys, i.e. the smallest and the largest keys unless they are cut,
+     * tables written before they were stored have none
+     */
+    @Nullable
+    private ByteBuffer minKey;
+    @Nullable
+    private ByteBuffer maxKey;
+
+    /* Versions of tables merged into this one by compaction */
+    private long[] replacedVersions = new long[0];
+
+    /* Max sequence number of the cells, unknown in tables of older versions */
+    private long maxTimeStamp = UNKNOWN_TIME_STAMP;
+
+    /* Max sequence number of tables which don't record it */
+    static final long UNKNOWN_TIME_STAMP = Long.MIN_VALUE;
+
+    /* Levels of tables, compaction merges tables of both levels into a bottom one */
+    static final int FLUSHED_LEVEL = 0;
+    static final int COMPACTED_LEVEL = 1;
+
+    /* Lookups and scans since the reader policy last looked at the table */
+    private final LongAdder reads = new LongAdder();
+
+    /* Tables found on start have unknown level and are treated as compacted ones */
+    private int level = COMPACTED_LEVEL;
+
+    /**
+     * How SSTable files are read.
+     */
+    public enum Implementation {
+        /** Positional reads through {@link FileChannel}, blocks are kept in {@link BlockCache}. */
         FILE_CHANNEL_READ,
-        MMAPPED
+        /** Reads of memory mapped file. */
+        MMAPPED,
+        /** One of the above per table, chosen by size, level and read rate of the table. */
+        ADAPTIVE
     }
 
     /**
@@ -48,16 +124,618 @@ public abstract class SSTable implements Table {
         version = getVersionFromName(file.getFileName().toString());
     }
 
+    /**
+     * Reads footer of the table and loads its metadata.
+     * Must be called by implementations when they open the file.
+     *
+     * @param channel channel of the table file
+     * @return footer of the table
+     * @throws IOException if unable to read file
+     */
+    SSTableFooter readFooter(final FileChannel channel) throws IOException {
+        final SSTableFooter footer = SSTableFooter.read(channel);
+        final ByteBuffer bloomFilter = footer.getSection(SSTableFooter.BLOOM_FILTER);
+        filter = bloomFilter == null ? null : BloomFilter.deserialize(bloomFilter);
+        final ByteBuffer index = footer.getSection(SSTableFooter.BLOCK_INDEX);
+        // Blocks are followed by the cell count
+        blockIndex = index == null ? null : BlockIndex.deserialize(index, footer.getTableEnd() - Integer.BYTES);
+        final ByteBuffer prefixes = footer.getSection(SSTableFooter.PREFIX_FILTER);
+        if (prefixes != null) {
+            prefixLength = prefixes.getInt();
+            prefixFilter = BloomFilter.deserialize(prefixes);
+        }
+        final ByteBuffer rowPrefixes = footer.getSection(SSTableFooter.KEY_PREFIXES);
+        if (rowPrefixes != null) {
+            keyPrefixes = new long[rowPrefixes.remaining() / Long.BYTES];
+            rowPrefixes.asLongBuffer().get(keyPrefixes);
+        }
+        final ByteBuffer keyRange = footer.getSection(SSTableFooter.KEY_RANGE);
+        if (keyRange != null) {
+            minKey = copy(lowerBound(take(keyRange, keyRange.getInt())));
+            maxKey = copy(upperBound(keyRange));
+        }
+        final ByteBuffer replaced = footer.getSection(SSTableFooter.REPLACED_TABLES);
+        if (replaced != null) {
+            replacedVersions = new long[replaced.remaining() / Long.BYTES];
+            replaced.asLongBuffer().get(replacedVersions);
+        }
+        final ByteBuffer timeStamp = footer.getSection(SSTableFooter.MAX_TIME_STAMP);
+        if (timeStamp != null) {
+            maxTimeStamp = timeStamp.getLong();
+        }
+        return footer;
+    }
+
+    private static ByteBuffer copy(final ByteBuffer key) {
+        return ByteBuffer.allocate(key.remaining()).put(key).flip();
+    }
+
+    /**
+     * Checks the prefix filter of the table, tables without it and prefixes shorter than its prefixes
+     * may match any key.
+     *
+     * @param prefix prefix of keys
+     * @return false if no key of the table starts with the prefix
+     */
+    boolean mightContainPrefix(@NotNull final ByteBuffer prefix) {
+        if (prefixFilter == null || prefix.remaining() < prefixLength) {
+            return true;
+        }
+        return prefixFilter.mightContain(BloomFilter.hash(prefixOf(prefix, prefixLength)));
+    }
+
+    private static ByteBuffer prefixOf(final ByteBuffer key, final int length) {
+        final ByteBuffer prefix = key.duplicate();
+        prefix.limit(prefix.position() + length);
+        return prefix;
+    }
+
+    /**
+     * Checks whether the table may have keys in [from, to), tables without key range may have any.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return false if the table has no keys in the range
+     */
+    boolean overlaps(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (minKey == null || maxKey == null) {
+            return true;
+        }
+        return maxKey.compareTo(from) >= 0 && (to == null || minKey.compareTo(to) < 0);
+    }
+
+    /**
+     * Checks whether the table may have keys in (to, from], tables without key range may have any.
+     *
+     * @param from first key (inclusive) or null to start from the largest key
+     * @param to last key (exclusive) or null for keys down to the smallest one
+     * @return false if the table has no keys in the range
+     */
+    boolean overlapsDescending(@Nullable final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (minKey == null || maxKey == null) {
+            return true;
+        }
+        return (from == null || minKey.compareTo(from) <= 0) && (to == null || maxKey.compareTo(to) > 0);
+    }
+
+    /**
+     * Checks whether all keys of the table are less than the bound, so scans needn't look for their end.
+     *
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return true if no key of the table reaches the bound
+     */
+    protected boolean isBelow(@Nullable final ByteBuffer to) {
+        return to == null || maxKey != null && maxKey.compareTo(to) < 0;
+    }
+
+    /** Whether cells are grouped into blocks instead of having their own offsets. */
+    boolean isBlockBased() {
+        return blockIndex != null;
+    }
+
+    boolean hasFilter() {
+        return filter != null;
+    }
+
+    /**
+     * Checks the Bloom filter of the table, tables without filter may contain any key.
+     *
+     * @param keyHash hash of the key, see {@link BloomFilter#hash(ByteBuffer)}
+     * @return false if the key is definitely absent
+     */
+    boolean mightContain(final long keyHash) {
+        return filter == null || filter.mightContain(keyHash);
+    }
+
+    /**
+     * Finds cell of the key.
+     *
+     * @param key key to find
+     * @return cell or null if the table has no such key
+     * @throws IOException if unable to read file
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        countRead();
+        if (blockIndex != null) {
+            final int block = blockIndex.floor(key);
+            if (block < 0) {
+                return null;
+            }
+            return findInBlock(readBlock(block), key);
+        }
+
+        final long keyPrefix = KeyPrefix.of(key);
+        int low = 0;
+        int high = getRowCount() - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int compare = compareKeyAt(mid, key, keyPrefix);
+
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return parseCell(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds cells of ascending keys in one forward pass over the table.
+     * Every search starts where the previous one ended and gallops forward,
+     * and a block is read once for all keys which fall into it.
+     *
+     * @param keys ascending distinct keys
+     * @return cells at indices of their keys, null where the table has no such key
+     * @throws IOException if unable to read file
+     */
+    Cell[] getAll(@NotNull final List<ByteBuffer> keys) throws IOException {
+        countRead();
+        final Cell[] cells = new Cell[keys.size()];
+        final BlockIndex index = blockIndex;
+        if (index != null) {
+            int block = -1;
+            int loaded = -1;
+            ByteBuffer data = null;
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                block = index.floor(key, block);
+                if (block < 0) {
+                    continue;
+                }
+                if (block != loaded) {
+                    data = readBlock(block);
+                    loaded = block;
+                }
+                // Cells before the position are less than the previous key, so the block is searched on from it
+                seek(data, key);
+                if (data.hasRemaining() && keyAt(data, data.position()).equals(key)) {
+                    cells[i] = readCell(data);
+                }
+            }
+            return cells;
+        }
+
+        final int rowCount = getRowCount();
+        int row = 0;
+        for (int i = 0; i < keys.size() && row < rowCount; i++) {
+            final ByteBuffer key = keys.get(i);
+            final long keyPrefix = KeyPrefix.of(key);
+            row = gallop(key, keyPrefix, row);
+            if (row < rowCount && compareKeyAt(row, key, keyPrefix) == 0) {
+                cells[i] = parseCell(row);
+                row++;
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Finds the first row with key not less than given one, galloping forward from a row before it.
+     *
+     * @param key key to find
+     * @param keyPrefix prefix of the key, see {@link KeyPrefix#of(ByteBuffer)}
+     * @param from row whose predecessors have smaller keys
+     * @return index of the row or row count if there is none
+     */
+    private int gallop(final ByteBuffer key, final long keyPrefix, final int from) throws IOException {
+        final int rowCount = getRowCount();
+        int low = from;
+        int step = 1;
+        while (low + step - 1 < rowCount && compareKeyAt(low + step - 1, key, keyPrefix) < 0) {
+            low += step;
+            step <<= 1;
+        }
+        return findStartIndex(key, keyPrefix, low, Math.min(low + step - 1, rowCount) - 1);
+    }
+
+    @Nullable
+    private Cell findInBlock(final ByteBuffer data, final ByteBuffer key) {
+        seek(data, key);
+        if (!data.hasRemaining()) {
+            return null;
+        }
+        final Cell cell = readCell(data);
+        return cell.getKey().equals(key) ? cell : null;
+    }
+
+    /**
+     * Finds cell of the key without blocking the caller on reads of block-based tables.
+     * Tables with offset of every cell read keys one by one while searching, so they are looked up in place.
+     *
+     * @param key key to find
+     * @return future of the cell or of null if the table has no such key
+     */
+    CompletableFuture<Cell> getAsync(@NotNull final ByteBuffer key) {
+        final BlockIndex index = blockIndex;
+        if (index == null) {
+            try {
+                // Counted by the lookup
+                return CompletableFuture.completedFuture(get(key));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        countRead();
+        final int block = index.floor(key);
+        if (block < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return readBlockAsync(index.getOffset(block), index.getSize(block))
+                .thenApply(data -> findInBlock(data, key));
+    }
+
+    /**
+     * Reads cells of the range without blocking the caller on reads of block-based tables.
+     * All blocks of the range are requested at once and kept in memory, so the range should be bounded.
+     * Tables with offset of every cell are read in place.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return future of cells in ascending order
+     */
+    CompletableFuture<List<Cell>> cellsAsync(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final BlockIndex index = blockIndex;
+        if (index == null) {
+            try {
+                final List<Cell> cells = new ArrayList<>();
+                iterator(from, to).forEachRemaining(cells::add);
+                return CompletableFuture.completedFuture(cells);
+            } catch (IOException | CellParsingException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        countRead();
+        final int first = Math.max(0, index.floor(from));
+        // Blocks after the one where the bound falls have only bigger keys
+        final int last = isBelow(to) ? index.getBlockCount() - 1 : index.floor(to);
+        final List<CompletableFuture<ByteBuffer>> blocks = new ArrayList<>();
+        for (int block = first; block <= last; block++) {
+            blocks.add(readBlockAsync(index.getOffset(block), index.getSize(block)));
+        }
+
+        return CompletableFuture.allOf(blocks.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final List<Cell> cells = new ArrayList<>();
+            for (int i = 0; i < blocks.size(); i++) {
+                final ByteBuffer data = blocks.get(i).join();
+                if (i == 0) {
+                    seek(data, from);
+                }
+                while (data.hasRemaining()) {
+                    final Cell cell = readCell(data);
+                    if (to != null && cell.getKey().compareTo(to) >= 0) {
+                        return cells;
+                    }
+                    cells.add(cell);
+                }
+            }
+            return cells;
+        });
+    }
+
+    /**
+     * Provides cells of block-based table starting from the block which may contain the first key.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return iterator over cells
+     * @throws IOException if unable to read the first block
+     */
+    protected Iterator<Cell> blockIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        final BlockIndex index = blockIndex;
+        final int first = Math.max(0, index.floor(from));
+        if (first >= index.getBlockCount()) {
+            return Collections.emptyIterator();
+        }
+        final long end = isBelow(to) ? Long.MAX_VALUE : seekBlocks(to);
+        final ByteBuffer firstData = readBlock(first);
+        seek(firstData, from);
+
+        return new Iterator<>() {
+
+            private int block = first;
+            private ByteBuffer data = firstData;
+
+            @Override
+            public boolean hasNext() {
+                while (!data.hasRemaining()) {
+                    if (block + 1 >= index.getBlockCount() || index.getOffset(block + 1) >= end) {
+                        return false;
+                    }
+                    try {
+                        data = readBlock(++block);
+                    } catch (IOException e) {
+                        throw new CellParsingException("Unable to read block", e);
+                    }
+                }
+                return index.getOffset(block) + data.position() < end;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return readCell(data);
+            }
+        };
+    }
+
+    /**
+     * Finds where cells of block-based table with keys not less than given one start.
+     * Cells of consecutive blocks are adjacent, so they may be decoded as one stream from there.
+     *
+     * @param from first key (inclusive)
+     * @return offset of the first such cell or end of the last block if there is none
+     * @throws IOException if unable to read the block
+     */
+    protected long seekBlocks(@NotNull final ByteBuffer from) throws IOException {
+        final BlockIndex index = blockIndex;
+        final int block = Math.max(0, index.floor(from));
+        if (block >= index.getBlockCount()) {
+            return 0;
+        }
+        final ByteBuffer data = readBlock(block);
+        seek(data, from);
+        return index.getOffset(block) + data.position();
+    }
+
+    /**
+     * Samples keys of the table inside of (from, to), which split the range into parts of similar size.
+     * Block-based tables give separators of their blocks, others give every {@value #SAMPLE_ROWS}th key.
+     *
+     * @param from first key of the range
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return ascending keys, copied so they outlive the table
+     * @throws IOException if unable to read keys
+     */
+    List<ByteBuffer> sampleKeys(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        final List<ByteBuffer> samples = new ArrayList<>();
+        final BlockIndex index = blockIndex;
+        if (index != null) {
+            for (int block = Math.max(0, index.floor(from)); block < index.getBlockCount(); block++) {
+                final ByteBuffer key = index.getKey(block);
+                if (to != null && key.compareTo(to) >= 0) {
+                    break;
+                }
+                if (key.compareTo(from) > 0) {
+                    samples.add(copy(key));
+                }
+            }
+            return samples;
+        }
+
+        final int rowCount = getRowCount();
+        for (int row = findStartIndex(from, 0, rowCount - 1) + SAMPLE_ROWS; row < rowCount; row += SAMPLE_ROWS) {
+            final ByteBuffer key = parseKey(row);
+            if (to != null && key.compareTo(to) >= 0) {
+                break;
+            }
+            samples.add(copy(key));
+        }
+        return samples;
+    }
+
+    private ByteBuffer readBlock(final int block) throws IOException {
+        return readBlock(blockIndex.getOffset(block), blockIndex.getSize(block));
+    }
+
+    /**
+     * Moves position of the block to the first cell with key not less than given one.
+     */
+    private static void seek(final ByteBuffer data, final ByteBuffer from) {
+        while (data.hasRemaining() && keyAt(data, data.position()).compareTo(from) < 0) {
+            data.position(cellEnd(data, data.position()));
+        }
+    }
+
+    /**
+     * Slices key of the cell starting at given position of the block.
+     */
+    private static ByteBuffer keyAt(final ByteBuffer data, final int start) {
+        final int keyOffset = start + Long.BYTES;
+        final ByteBuffer key = data.duplicate();
+        key.limit(keyOffset + (int) data.getLong(start));
+        key.position(keyOffset);
+        return key;
+    }
+
+    /**
+     * Finds end of the cell starting at given position of the block.
+     */
+    private static int cellEnd(final ByteBuffer data, final int start) {
+        int end = start + Long.BYTES + (int) data.getLong(start) + Long.BYTES;
+        final boolean tombstone = data.get(end) != 0;
+        end += Byte.BYTES;
+        if (!tombstone) {
+            end += Long.BYTES + (int) data.getLong(end);
+        }
+        return end;
+    }
+
+    /**
+     * Provides cells with keys not greater than given one in descending order.
+     * Tables with per-cell offsets are walked back through the offsets,
+     * block-based tables decode positions of cells of a block and return them backwards.
+     *
+     * @param from first key (inclusive) or null to start from the largest key
+     * @return iterator over cells
+     * @throws IOException if unable to read file
+     */
+    Iterator<Cell> descendingIterator(@Nullable final ByteBuffer from) throws IOException {
+        countRead();
+        return blockIndex == null ? descendingCells(from) : descendingBlocks(from);
+    }
+
+    private Iterator<Cell> descendingCells(@Nullable final ByteBuffer from) throws IOException {
+        final int rowCount = getRowCount();
+        int last = rowCount - 1;
+        if (from != null) {
+            final long fromPrefix = KeyPrefix.of(from);
+            final int index = findStartIndex(from, fromPrefix, 0, rowCount - 1);
+            last = index < rowCount && compareKeyAt(index, from, fromPrefix) == 0 ? index : index - 1;
+        }
+        final int first = last;
+
+        return new Iterator<>() {
+
+            private int position = first;
+
+            @Override
+            public boolean hasNext() {
+                return position >= 0;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return parseCell(position--);
+                } catch (IOException e) {
+                    throw new CellParsingException("Unable to parse cell", e);
+                }
+            }
+        };
+    }
+
+    private Iterator<Cell> descendingBlocks(@Nullable final ByteBuffer from) {
+        final BlockIndex index = blockIndex;
+        final int last = from == null ? index.getBlockCount() - 1 : index.floor(from);
+
+        return new Iterator<>() {
+
+            private int block = last;
+            private ByteBuffer data;
+            /* Positions of cells of the current block which are not returned yet */
+            private int[] starts = new int[0];
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                while (count == 0) {
+                    if (block < 0) {
+                        return false;
+                    }
+                    try {
+                        load(block--);
+                    } catch (IOException e) {
+                        throw new CellParsingException("Unable to read block", e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                data.position(starts[--count]);
+                return readCell(data);
+            }
+
+            private void load(final int number) throws IOException {
+                data = readBlock(number);
+                count = 0;
+                int position = data.position();
+                while (position < data.limit()) {
+                    if (from != null && number == last && keyAt(data, position).compareTo(from) > 0) {
+                        break;
+                    }
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, Math.max(16, count * 2));
+                    }
+                    starts[count++] = position;
+                    position = cellEnd(data, position);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the cell at position of the block and moves past it.
+     * Key and value of the cell are slices of the block.
+     */
+    private Cell readCell(final ByteBuffer data) {
+        final ByteBuffer key = take(data, (int) data.getLong());
+        final long timeStamp = data.getLong();
+        final boolean tombstone = data.get() != 0;
+
+        if (tombstone) {
+            return Cell.create(key, Value.tombstone(timeStamp), version);
+        }
+        final ByteBuffer value = take(data, (int) data.getLong());
+        return Cell.create(key, Value.of(timeStamp, value), version);
+    }
+
+    /**
+     * Compares key of the row with given key, the row key is read only if prefixes of the keys are equal
+     * or the table has no prefixes.
+     */
+    private int compareKeyAt(final int row, final ByteBuffer key, final long keyPrefix) throws IOException {
+        final long[] prefixes = keyPrefixes;
+        if (prefixes != null) {
+            final int compare = KeyPrefix.compare(prefixes[row], keyPrefix);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return parseKey(row).compareTo(key);
+    }
+
+    private static ByteBuffer take(final ByteBuffer data, final int size) {
+        final ByteBuffer slice = data.slice();
+        slice.limit(size);
+        data.position(data.position() + size);
+        return slice;
+    }
+
     protected int findStartIndex(final ByteBuffer from, final int low, final int high) throws IOException {
+        return findStartIndex(from, KeyPrefix.of(from), low, high);
+    }
+
+    private int findStartIndex(
+            final ByteBuffer from,
+            final long fromPrefix,
+            final int low,
+            final int high) throws IOException {
         int curLow = low;
         int curHigh = high;
 
         while (curLow <= curHigh) {
             final int mid = (curLow + curHigh) / 2;
 
-            final ByteBuffer midKey = parseKey(mid);
-
-            final int compare = midKey.compareTo(from);
+            final int compare = compareKeyAt(mid, from, fromPrefix);
 
             if (compare < 0) {
                 curLow = mid + 1;
@@ -72,16 +750,20 @@ public abstract class SSTable implements Table {
 
     /** 
      * Finds versions of SSTables in given directory.
+     * Tables which were compacted into another one, but outlived it because of a crash, are deleted,
+     * otherwise they would bring back the keys removed by tombstones which compaction has dropped.
      *
      * @param tablesDir directory to find SSTable files
-     * @param impl type of SSTable implementation
+     * @param policy chooses reader of every table
+     * @param blockCache cache of blocks read from files
      * @return list of SSTable abstractions
      * @throws IOException if unable to read directory
      */
     protected static List<SSTable> findVersions(
             final Path tablesDir,
-            final Implementation impl) throws IOException {
-        
+            final ReaderPolicy policy,
+            final BlockCache blockCache) throws IOException {
+
         final List<SSTable> ssTables = new ArrayList<>();
         Files.walkFileTree(tablesDir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
             
@@ -91,66 +773,141 @@ public abstract class SSTable implements Table {
                     final BasicFileAttributes attrs) throws IOException {
                 
                 if (checkFileName(file.getFileName().toString())) {
-                    
-                    if (impl == Implementation.FILE_CHANNEL_READ) {
-                        ssTables.add(new SSTableFileChannel(file));
-                    } else {
-                        ssTables.add(new SSTableMmap(file));
-                    }
-                    
+                    final Implementation impl = policy.choose(attrs.size(), COMPACTED_LEVEL);
+                    ssTables.add(open(file, impl, COMPACTED_LEVEL, blockCache));
                 }
                 return FileVisitResult.CONTINUE;
             }
             
         });
-        return ssTables;
+
+        final Set<Long> replaced = new HashSet<>();
+        for (final SSTable ssTable : ssTables) {
+            for (final long version : ssTable.replacedVersions) {
+                replaced.add(version);
+            }
+        }
+        final List<SSTable> live = new ArrayList<>(ssTables.size());
+        for (final SSTable ssTable : ssTables) {
+            if (replaced.contains(ssTable.version)) {
+                ssTable.retire();
+            } else {
+                live.add(ssTable);
+            }
+        }
+        return live;
+    }
+
+    private static SSTable open(
+            final Path file,
+            final Implementation impl,
+            final int level,
+            final BlockCache blockCache) throws IOException {
+        final SSTable ssTable = impl == Implementation.MMAPPED
+                ? new SSTableMmap(file)
+                : new SSTableFileChannel(file, blockCache);
+        ssTable.level = level;
+        return ssTable;
     }
 
     /**
-     * Removes old versions of SSTables and reset version of actual SSTable file to min value.
+     * Opens the file of the table once more with another reader.
+     * The table stays open until its references are released.
      *
-     * @param tablesDir directory to find SSTable files
-     * @param actualFile file with actual version of SSTable
-     * @throws IOException if unable to read directory
+     * @param impl reader of the new table
+     * @param blockCache cache of blocks read from files
+     * @return new table of the same file and level
+     * @throws IOException if unable to open file
      */
-    protected static void removeOldVersionsAndResetCounter(
-            final Path tablesDir,
-            final Path actualFile) throws IOException {
+    SSTable reopen(final Implementation impl, final BlockCache blockCache) throws IOException {
+        return open(file, impl, level, blockCache);
+    }
 
-        Files.walkFileTree(tablesDir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+    /** How the table is read, never {@link Implementation#ADAPTIVE}. */
+    abstract Implementation getImplementation();
 
-            @Override
-            public FileVisitResult visitFile(
-                    final Path file,
-                    final BasicFileAttributes attrs) throws IOException {
+    int getLevel() {
+        return level;
+    }
 
-                if (!file.equals(actualFile)) {
-                    Files.delete(file);
-                }
+    /**
+     * Returns max sequence number of the cells of the table,
+     * or {@link #UNKNOWN_TIME_STAMP} if the table was written before it was recorded.
+     */
+    long getMaxTimeStamp() {
+        return maxTimeStamp;
+    }
 
-                return FileVisitResult.CONTINUE;
-            }
+    void countRead() {
+        reads.increment();
+    }
 
-            @Override
-            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
-                resetTableVersion(actualFile);
-                return FileVisitResult.CONTINUE;
+    /**
+     * Counts reads of the table since the previous call.
+     *
+     * @return count of lookups and scans
+     */
+    long takeReads() {
+        return reads.sumThenReset();
+    }
+
+    /**
+     * Takes a reference which keeps the table open until {@link #release()}.
+     *
+     * @return false if the table is already retired and closed
+     */
+    boolean retain() {
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
             }
+        }
+    }
 
-            private void resetTableVersion(final Path tableFile) throws IOException {
-                changeTableVersion(tableFile, MIN_TABLE_VERSION);
+    /**
+     * Drops a reference, the table is closed when the last one is gone.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                close();
+            } catch (IOException e) {
+                log.warn("Unable to close table " + version, e);
             }
-        });
+        }
     }
 
-    private static void changeTableVersion(final Path tableFile, final long newVersion) throws IOException {
-        Files.move(tableFile, tableFile.resolveSibling(createName(newVersion)), StandardCopyOption.ATOMIC_MOVE);
+    /**
+     * Removes the table file and drops the reference of the storage.
+     * Readers which still hold the table keep reading the unlinked file.
+     *
+     * @throws IOException if unable to delete file
+     */
+    void retire() throws IOException {
+        deleteFile();
+        release();
     }
 
-    private static String createName(final long version) {
-        return TABLE_FILE_PREFIX + version + TABLE_FILE_SUFFIX;
+    /**
+     * Removes the table file, the table stays open and readable until its references are released.
+     *
+     * @throws IOException if unable to delete file
+     */
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
     }
-    
+
+    /**
+     * Releases resources of the table, called once nobody references it.
+     */
+    protected void close() throws IOException {
+        // Nothing to release by default
+    }
+
     protected static long getVersionFromName(final String fileName) {
         final Pattern pattern = Pattern.compile(FILE_NAME_PATTERN);
         final Matcher matcher = pattern.matcher(fileName);
@@ -173,71 +930,192 @@ public abstract class SSTable implements Table {
      * <p>Each cell is sequentially written in the following format:
      * - keySize (8 bytes)
      * - key ("keySize" bytes)
-     * - timestamp (8 bytes)
+     * - sequence number of the write (8 bytes, write timestamp in tables of older versions)
      * - tombstone (1 byte)</p>
      *
      * <p>If cell has value:
      * - valueSize (8 bytes)
      * - value ("valueSize" bytes)</p>
      *
-     * <p>This is followed by offsets:
+     * <p>If blocks are enabled, cells are grouped into blocks of about the configured size
+     * and {@link BlockIndex} of them is written into the footer.
+     * Otherwise this is followed by offsets:
      * - offset (cellCount * 8 bytes)</p>
      *
-     * <p>At the end of file is cell count:
+     * <p>This is followed by cell count:
      * - cellCount (4 bytes)</p>
      *
+     * <p>At the end of file is {@link SSTableFooter} with the block index and Bloom filter of keys,
+     * unless both are disabled.</p>
+     *
      * @param tablesDir directory to write table
      * @param cellIterator iterator over cells, that you want to flush
-     * @param version version of table
+     * @param cellCount count of cells or an upper bound of it, Bloom filters are sized by it
+     * @param version version of table, existing table of the same version is replaced
+     * @param config parameters of table format
      * @return path to the file in which the cells were written
      * @throws IOException if unable to open file
      */
     static Path writeTable(
             final Path tablesDir,
             final Iterator<Cell> cellIterator,
-            final long version) throws IOException {
+            final long cellCount,
+            final long version,
+            final Config config) throws IOException {
+        return writeTable(tablesDir, cellIterator, cellCount, version, List.of(), config);
+    }
+
+    /**
+     * Writes SSTable in file like {@link #writeTable(Path, Iterator, long, long, Config)} does
+     * and records versions of other tables which it replaces, so they are deleted on start if they outlive it.
+     *
+     * @param tablesDir directory to write table
+     * @param cellIterator iterator over cells, that you want to flush
+     * @param cellCount count of cells or an upper bound of it, Bloom filters are sized by it
+     * @param version version of table, existing table of the same version is replaced
+     * @param replaced versions of tables merged into this one, except the one of the same version
+     * @param config parameters of table format
+     * @return path to the file in which the cells were written
+     * @throws IOException if unable to open file
+     */
+    static Path writeTable(
+            final Path tablesDir,
+            final Iterator<Cell> cellIterator,
+            final long cellCount,
+            final long version,
+            final List<Long> replaced,
+            final Config config) throws IOException {
 
         final Path tmpFile = tablesDir.resolve(TABLE_FILE_PREFIX + version + TABLE_TMP_FILE_SUFFIX);
+        // Leftover of an interrupted write
+        Files.deleteIfExists(tmpFile);
 
+        final boolean withBlocks = config.getBlockSize() > 0;
+        // Offsets and key prefixes of cells of tables without blocks wait for the end of cells on disk
         try (FileChannel channel = FileChannel.open(tmpFile,
                 StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE_NEW)) {
+                StandardOpenOption.CREATE_NEW);
+             LongSpill offsets = withBlocks ? null : new LongSpill(spillFile(tablesDir, version, "offsets"));
+             LongSpill keyPrefixes = withBlocks ? null : new LongSpill(spillFile(tablesDir, version, "prefixes"))) {
 
-            final List<Integer> offsetList = new ArrayList<>();
+            // Cells are small, so they are gathered into bigger writes
+            final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long position = 0;
+            int rowCount = 0;
+            final int bitsPerKey = config.getBloomBitsPerKey();
+            final BloomFilter filter = bitsPerKey > 0 ? BloomFilter.create(cellCount, bitsPerKey) : null;
+            final int prefixLength = filter == null ? 0 : config.getPrefixFilterLength();
+            // Distinct prefixes are not more than cells
+            final BloomFilter prefixFilter = prefixLength > 0 ? BloomFilter.create(cellCount, bitsPerKey) : null;
+            ByteBuffer previousPrefix = null;
+            final BlockIndex.Builder blockIndex = withBlocks ? new BlockIndex.Builder() : null;
+            long blockStart = 0;
+            ByteBuffer firstKey = null;
+            ByteBuffer previousKey = null;
+            long maxTimeStamp = UNKNOWN_TIME_STAMP;
 
             while (cellIterator.hasNext()) {
 
-                offsetList.add((int) channel.position());
-
                 final Cell cell = cellIterator.next();
 
+                if (blockIndex == null) {
+                    offsets.add(position);
+                    keyPrefixes.add(KeyPrefix.of(cell.getKey()));
+                } else if (rowCount == 0 || position - blockStart >= config.getBlockSize()) {
+                    blockIndex.add(previousKey, cell.getKey(), position);
+                    blockStart = position;
+                }
+                if (firstKey == null) {
+                    firstKey = cell.getKey();
+                }
+                if (prefixFilter != null && cell.getKey().remaining() >= prefixLength) {
+                    final ByteBuffer prefix = prefixOf(cell.getKey(), prefixLength);
+                    // Keys are sorted, so equal prefixes are adjacent
+                    if (!prefix.equals(previousPrefix)) {
+                        prefixFilter.add(BloomFilter.hash(prefix));
+                        previousPrefix = prefix;
+                    }
+                }
+                previousKey = cell.getKey();
+
+                if (filter != null) {
+                    filter.add(BloomFilter.hash(cell.getKey()));
+                }
+                rowCount++;
+
                 final long keySize = cell.getKey().limit();
-                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(keySize).flip());
-                channel.write(ByteBuffer.allocate((int) keySize).put(cell.getKey()).flip());
+                reserve(channel, buffer, Long.BYTES).putLong(keySize);
+                put(channel, buffer, cell.getKey().duplicate());
 
                 final long timeStamp = cell.getValue().getTimeStamp();
-                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(timeStamp).flip());
+                reserve(channel, buffer, Long.BYTES).putLong(timeStamp);
+                maxTimeStamp = Math.max(maxTimeStamp, timeStamp);
 
                 final boolean tombstone = cell.getValue().isRemoved();
-                channel.write(ByteBuffer.allocate(Byte.BYTES).put((byte) (tombstone ? 1 : 0)).flip());
+                reserve(channel, buffer, Byte.BYTES).put((byte) (tombstone ? 1 : 0));
+
+                position += Long.BYTES + keySize + Long.BYTES + Byte.BYTES;
 
                 if (!tombstone) {
                     final ByteBuffer value = cell.getValue().getData();
                     final long valueSize = value.limit();
-                    channel.write(ByteBuffer.allocate(Long.BYTES).putLong(valueSize).flip());
-                    channel.write(ByteBuffer.allocate((int) valueSize).put(value).flip());
+                    reserve(channel, buffer, Long.BYTES).putLong(valueSize);
+                    put(channel, buffer, value.duplicate());
+
+                    position += Long.BYTES + valueSize;
                 }
             }
 
-            final ByteBuffer offsetByteBuffer = ByteBuffer.allocate(Long.BYTES * offsetList.size());
+            if (offsets != null) {
+                drain(channel, buffer);
+                offsets.transferTo(channel);
+            }
+
+            reserve(channel, buffer, Integer.BYTES).putInt(rowCount);
 
-            for (final int offset : offsetList) {
-                offsetByteBuffer.putLong(offset);
+            int writtenSections = 0;
+            if (keyPrefixes != null && rowCount > 0 && rowCount <= MAX_KEY_PREFIXES) {
+                final int payloadSize = Long.BYTES * rowCount;
+                put(channel, buffer, SSTableFooter.sectionHeader(SSTableFooter.KEY_PREFIXES, payloadSize));
+                drain(channel, buffer);
+                keyPrefixes.transferTo(channel);
+                writtenSections += SSTableFooter.sectionSize(payloadSize);
             }
 
-            channel.write(offsetByteBuffer.flip());
+            final Map<Byte, ByteBuffer> sections = new HashMap<>();
+            if (filter != null) {
+                sections.put(SSTableFooter.BLOOM_FILTER, filter.serialize());
+            }
+            if (blockIndex != null) {
+                sections.put(SSTableFooter.BLOCK_INDEX, blockIndex.serialize());
+            }
+            if (prefixFilter != null) {
+                final ByteBuffer serialized = prefixFilter.serialize();
+                sections.put(SSTableFooter.PREFIX_FILTER, ByteBuffer.allocate(Integer.BYTES + serialized.remaining())
+                        .putInt(prefixLength)
+                        .put(serialized)
+                        .flip());
+            }
+            if (firstKey != null) {
+                sections.put(SSTableFooter.KEY_RANGE, keyRange(firstKey, previousKey));
+                sections.put(SSTableFooter.MAX_TIME_STAMP, ByteBuffer.allocate(Long.BYTES)
+                        .putLong(maxTimeStamp)
+                        .flip());
+            }
+            if (!replaced.isEmpty()) {
+                final ByteBuffer versions = ByteBuffer.allocate(Long.BYTES * replaced.size());
+                for (final long replacedVersion : replaced) {
+                    versions.putLong(replacedVersion);
+                }
+                sections.put(SSTableFooter.REPLACED_TABLES, versions.flip());
+            }
+            if (!sections.isEmpty() || writtenSections > 0) {
+                put(channel, buffer, SSTableFooter.write(sections, writtenSections));
+            }
+            drain(channel, buffer);
 
-            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(offsetList.size()).flip());
+            // Write-ahead log of the table is deleted right after this
+            channel.force(false);
         }
 
         final Path newTableFile = tablesDir
@@ -247,41 +1125,171 @@ public abstract class SSTable implements Table {
         return newTableFile;
     }
 
-    public abstract Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+    private static Path spillFile(final Path tablesDir, final long version, final String name) {
+        return tablesDir.resolve(TABLE_FILE_PREFIX + version + "." + name + TABLE_TMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Serializes bounds of the smallest and the largest keys as size of the first one followed by both bounds.
+     */
+    private static ByteBuffer keyRange(final ByteBuffer minKey, final ByteBuffer maxKey) {
+        final ByteBuffer lower = lowerBound(minKey);
+        final ByteBuffer upper = upperBound(maxKey);
+        return ByteBuffer.allocate(Integer.BYTES + lower.remaining() + upper.remaining())
+                .putInt(lower.remaining())
+                .put(lower)
+                .put(upper)
+                .flip();
+    }
+
+    /**
+     * Cuts a long key to a prefix, which is not greater than the key.
+     */
+    private static ByteBuffer lowerBound(final ByteBuffer key) {
+        return prefixOf(key, Math.min(key.remaining(), MAX_KEY_BOUND_LENGTH));
+    }
+
+    /**
+     * Cuts a long key to the shortest key which is greater than all keys with its prefix.
+     * Bytes are compared as signed ones like {@link ByteBuffer#compareTo(ByteBuffer)} does.
+     */
+    private static ByteBuffer upperBound(final ByteBuffer key) {
+        if (key.remaining() <= MAX_KEY_BOUND_LENGTH) {
+            return key.duplicate();
+        }
+        for (int i = MAX_KEY_BOUND_LENGTH - 1; i >= 0; i--) {
+            final byte b = key.get(key.position() + i);
+            if (b != Byte.MAX_VALUE) {
+                final ByteBuffer bound = ByteBuffer.allocate(i + 1);
+                bound.put(prefixOf(key, i)).put((byte) (b + 1));
+                return bound.flip();
+            }
+        }
+        // Every byte of the prefix is the largest one
+        return key.duplicate();
+    }
+
+    /**
+     * Makes room for given count of bytes in the write buffer, writing its contents out if needed.
+     */
+    private static ByteBuffer reserve(
+            final FileChannel channel,
+            final ByteBuffer buffer,
+            final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Appends bytes through the write buffer, big chunks are written directly.
+     */
+    private static void put(
+            final FileChannel channel,
+            final ByteBuffer buffer,
+            final ByteBuffer src) throws IOException {
+        if (src.remaining() <= buffer.remaining()) {
+            buffer.put(src);
+            return;
+        }
+
+        drain(channel, buffer);
+        if (src.remaining() <= buffer.remaining()) {
+            buffer.put(src);
+        } else {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+    }
+
+    private static void drain(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
 
-    public abstract void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value);
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return iterator(from, null);
+    }
 
-    public abstract void remove(@NotNull ByteBuffer key);
+    /**
+     * Provides cells with keys in [from, to), the scan stops at the bound by itself.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @return iterator over cells
+     * @throws IOException if unable to read file
+     */
+    public abstract Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
 
     public abstract long getSize();
 
     public abstract long getVersion();
 
+    protected abstract int getRowCount();
+
     protected abstract ByteBuffer parseKey(final int index) throws IOException;
 
     protected abstract Cell parseCell(final int index) throws IOException;
 
+    /**
+     * Reads bytes of a data block of block-based table.
+     *
+     * @param offset offset of the block in the file
+     * @param size size of the block
+     * @return buffer of the block, positions in it are relative to the block start
+     * @throws IOException if unable to read file
+     */
+    protected abstract ByteBuffer readBlock(long offset, int size) throws IOException;
+
+    /**
+     * Reads bytes of a data block without blocking the caller.
+     * The default implementation reads the block in place, which suits tables served from memory.
+     *
+     * @param offset offset of the block in the file
+     * @param size size of the block
+     * @return future of buffer of the block, see {@link #readBlock(long, int)}
+     */
+    protected CompletableFuture<ByteBuffer> readBlockAsync(final long offset, final int size) {
+        try {
+            return CompletableFuture.completedFuture(readBlock(offset, size));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * Flushes in-memory table to file.
      *
      * @param tablesDir directory to flush
      * @param cellIterator iterator over cell
+     * @param cellCount count of cells or an upper bound of it
      * @param version version of table
-     * @param impl type of implementation of SSTable abstraction
+     * @param replaced versions of tables merged into this one, empty for memtables
+     * @param level {@link #FLUSHED_LEVEL} for memtables, {@link #COMPACTED_LEVEL} for results of compaction
+     * @param policy chooses reader of the table
+     * @param config parameters of table format
+     * @param blockCache cache of blocks read from files
      * @return SSTable abstraction
      * @throws IOException if unable to open file
      */
-    public static SSTable flush(
+    static SSTable flush(
             final Path tablesDir, 
             final Iterator<Cell> cellIterator, 
+            final long cellCount,
             final long version,
-            final Implementation impl) throws IOException {
-        
-        if (impl == Implementation.FILE_CHANNEL_READ) {
-            return new SSTableFileChannel(writeTable(tablesDir, cellIterator, version));
-        } else {
-            return new SSTableMmap(writeTable(tablesDir, cellIterator, version));
-        }
+            final List<Long> replaced,
+            final int level,
+            final ReaderPolicy policy,
+            final Config config,
+            final BlockCache blockCache) throws IOException {
+        final Path file = writeTable(tablesDir, cellIterator, cellCount, version, replaced, config);
+        return open(file, policy.choose(Files.size(file), level), level, blockCache);
     }
 
 }
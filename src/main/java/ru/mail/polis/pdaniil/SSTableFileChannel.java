@@ -1,61 +1,151 @@
 package ru.mail.polis.pdaniil;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 
 public class SSTableFileChannel extends SSTable {
 
+    private static final int READ_AHEAD_SIZE = 64 * 1024;
+
     private final FileChannel channel;
+    /*
+     * Opened together with the channel, since compaction may replace the file at its path
+     * while the table is still read
+     */
+    private final AsynchronousFileChannel asyncChannel;
+    private final BlockCache blockCache;
+    private final long cacheId = BlockCache.nextTableId();
+    private final long tableEnd;
     private final int rowCount;
 
     /** 
      * FileChannel.read() SSTable implementation.
      *
      * @param file directory of SSTable files
+     * @param blockCache cache of blocks shared with other tables
      * @throws IOException if unable to read SSTable files
      */
-    public SSTableFileChannel(final Path file) throws IOException {
+    public SSTableFileChannel(final Path file, final BlockCache blockCache) throws IOException {
         super(file);
+        this.blockCache = blockCache;
         channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            asyncChannel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        tableEnd = readFooter(channel).getTableEnd();
         rowCount = receiveRowCount();
     }
 
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return new Iterator<>() {
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        countRead();
+        if (isBlockBased()) {
+            // Blocks are followed by the cell count
+            final long dataEnd = tableEnd - Integer.BYTES;
+            return new Scan(seekBlocks(from), isBelow(to) ? dataEnd : seekBlocks(to));
+        }
 
-            private int position = findStartIndex(from, 0, rowCount - 1);
+        // Cells are followed by their offsets
+        final long dataEnd = tableEnd - Integer.BYTES - Long.BYTES * (long) rowCount;
+        final int start = findStartIndex(from, 0, rowCount - 1);
+        final int end = isBelow(to) ? rowCount : findStartIndex(to, start, rowCount - 1);
+        return new Scan(
+                start < rowCount ? receiveOffset(start) : dataEnd,
+                end < rowCount ? receiveOffset(end) : dataEnd);
+    }
 
-            @Override
-            public boolean hasNext() {
-                return position < rowCount;
+    /**
+     * Decodes adjacent cells front to back with few big reads instead of a read per field.
+     * Every read fills a new window, since cells returned by the scan are slices of windows.
+     * Values bigger than a window are skipped and read only if somebody asks for them.
+     */
+    private final class Scan implements Iterator<Cell> {
+
+        private final long end;
+        private long offset;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        private long windowOffset;
+
+        Scan(final long offset, final long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < end;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return readCell();
+            } catch (IOException e) {
+                throw new CellParsingException("Unable to parse cell", e);
+            }
+        }
+
+        private Cell readCell() throws IOException {
+            final int keySize = (int) read(offset, Long.BYTES).getLong();
+            offset += Long.BYTES;
+            final ByteBuffer key = read(offset, keySize);
+            offset += keySize;
+
+            final ByteBuffer header = read(offset, Long.BYTES + Byte.BYTES);
+            final long timeStamp = header.getLong();
+            final boolean tombstone = header.get() != 0;
+            offset += Long.BYTES + Byte.BYTES;
+
+            if (tombstone) {
+                return Cell.create(key, Value.tombstone(timeStamp), getVersion());
             }
 
-            @Override
-            public Cell next() {
-                try {
-                    return parseCell(position++);
-                } catch (IOException e) {
-                    throw new CellParsingException("Unable to parse cell", e);
-                }
+            final int valueSize = (int) read(offset, Long.BYTES).getLong();
+            offset += Long.BYTES;
+            final Value value;
+            if (valueSize > READ_AHEAD_SIZE) {
+                final long valueOffset = offset;
+                value = Value.lazy(timeStamp, () -> readFully(valueOffset, valueSize));
+            } else {
+                value = Value.of(timeStamp, read(offset, valueSize));
             }
-        };
-    }
+            offset += valueSize;
 
-    @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        throw new UnsupportedOperationException("SSTable is immutable");
-    }
+            return Cell.create(key, value, getVersion());
+        }
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        throw new UnsupportedOperationException("SSTable is immutable");
+        private ByteBuffer read(final long offset, final int size) throws IOException {
+            if (offset < windowOffset || offset + size > windowOffset + window.limit()) {
+                final long windowSize = Math.max(size, Math.min(READ_AHEAD_SIZE, end - offset));
+                window = readFully(offset, (int) windowSize);
+                windowOffset = offset;
+            }
+
+            final int position = (int) (offset - windowOffset);
+            final ByteBuffer slice = window.duplicate();
+            slice.limit(position + size);
+            slice.position(position);
+            return slice.slice();
+        }
     }
 
     @Override
@@ -68,10 +158,20 @@ public class SSTableFileChannel extends SSTable {
         return version;
     }
 
+    @Override
+    Implementation getImplementation() {
+        return Implementation.FILE_CHANNEL_READ;
+    }
+
+    @Override
+    protected int getRowCount() {
+        return rowCount;
+    }
+
     private int receiveRowCount() throws IOException {
 
         final ByteBuffer rowCountBuffer = ByteBuffer.allocate(Integer.BYTES);
-        final long rowCountOff = channel.size() - Integer.BYTES;
+        final long rowCountOff = tableEnd - Integer.BYTES;
         channel.read(rowCountBuffer, rowCountOff);
 
         return rowCountBuffer.rewind().getInt();
@@ -80,7 +180,7 @@ public class SSTableFileChannel extends SSTable {
     private long receiveOffset(final int index) throws IOException {
 
         final ByteBuffer offsetBuffer = ByteBuffer.allocate(Long.BYTES);
-        final long offsetOff = channel.size() - Integer.BYTES - Long.BYTES * (long) (rowCount - index);
+        final long offsetOff = tableEnd - Integer.BYTES - Long.BYTES * (long) (rowCount - index);
         channel.read(offsetBuffer, offsetOff);
 
         return offsetBuffer.rewind().getLong();
@@ -150,7 +250,66 @@ public class SSTableFileChannel extends SSTable {
         }
     }
 
+    @Override
+    protected ByteBuffer readBlock(final long offset, final int size) throws IOException {
+        final ByteBuffer cached = blockCache.get(cacheId, offset);
+        if (cached != null) {
+            return cached;
+        }
+
+        return blockCache.put(cacheId, offset, readFully(offset, size));
+    }
+
+    /**
+     * Reads the block through {@link AsynchronousFileChannel}, so the caller doesn't wait for disk.
+     * Blocks found in the cache complete in place.
+     */
+    @Override
+    protected CompletableFuture<ByteBuffer> readBlockAsync(final long offset, final int size) {
+        final ByteBuffer cached = blockCache.get(cacheId, offset);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        asyncChannel.read(buffer, offset, buffer, new CompletionHandler<>() {
+            @Override
+            public void completed(final Integer read, final ByteBuffer attachment) {
+                if (read < 0) {
+                    result.completeExceptionally(new IOException("Unexpected end of table file"));
+                } else if (buffer.hasRemaining()) {
+                    asyncChannel.read(buffer, offset + buffer.position(), buffer, this);
+                } else {
+                    result.complete(blockCache.put(cacheId, offset, buffer.flip()));
+                }
+            }
+
+            @Override
+            public void failed(final Throwable e, final ByteBuffer attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private ByteBuffer readFully(final long offset, final int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of table file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    @Override
     protected void close() throws IOException {
-        channel.close();
+        blockCache.invalidate(cacheId);
+        try {
+            channel.close();
+        } finally {
+            asyncChannel.close();
+        }
     }
 }
@@ -0,0 +1,155 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional metadata sections written after the cell count of SSTable.
+ *
+ * <p>Footer layout:
+ * - sections, each of them is kind (1 byte), payloadSize (4 bytes) and payload
+ * - size of all sections (4 bytes)
+ * - magic number (8 bytes)</p>
+ *
+ * <p>Tables written before footers were introduced end right after the cell count.
+ * The count is never negative while the low half of the magic number is,
+ * so such tables are never mistaken for tables with footer.</p>
+ */
+final class SSTableFooter {
+
+    static final byte BLOOM_FILTER = 1;
+    static final byte BLOCK_INDEX = 2;
+    static final byte KEY_RANGE = 3;
+    static final byte PREFIX_FILTER = 4;
+    static final byte KEY_PREFIXES = 5;
+    static final byte REPLACED_TABLES = 6;
+    static final byte MAX_TIME_STAMP = 7;
+
+    private static final long MAGIC = 0x53535441C0DEB100L;
+    private static final int TRAILER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int SECTION_HEADER_SIZE = Byte.BYTES + Integer.BYTES;
+
+    private final long tableEnd;
+    private final Map<Byte, ByteBuffer> sections;
+
+    private SSTableFooter(final long tableEnd, final Map<Byte, ByteBuffer> sections) {
+        this.tableEnd = tableEnd;
+        this.sections = sections;
+    }
+
+    /**
+     * Reads footer of the table file.
+     *
+     * @param channel channel of the table file
+     * @return footer, empty for tables without it
+     * @throws IOException if unable to read file
+     */
+    static SSTableFooter read(final FileChannel channel) throws IOException {
+        final long fileSize = channel.size();
+        if (fileSize < Integer.BYTES + TRAILER_SIZE) {
+            return new SSTableFooter(fileSize, Map.of());
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, fileSize - TRAILER_SIZE);
+        final int sectionsSize = trailer.getInt(0);
+        if (trailer.getLong(Integer.BYTES) != MAGIC) {
+            return new SSTableFooter(fileSize, Map.of());
+        }
+
+        final long tableEnd = fileSize - TRAILER_SIZE - sectionsSize;
+        final ByteBuffer buffer = ByteBuffer.allocate(sectionsSize);
+        readFully(channel, buffer, tableEnd);
+
+        final Map<Byte, ByteBuffer> sections = new HashMap<>();
+        while (buffer.hasRemaining()) {
+            final byte kind = buffer.get();
+            final int payloadSize = buffer.getInt();
+            final ByteBuffer payload = buffer.slice();
+            payload.limit(payloadSize);
+            sections.put(kind, payload);
+            buffer.position(buffer.position() + payloadSize);
+        }
+        return new SSTableFooter(tableEnd, sections);
+    }
+
+    private static void readFully(
+            final FileChannel channel,
+            final ByteBuffer buffer,
+            final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of table file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Serializes footer with given sections.
+     *
+     * @param sections payloads by kind
+     * @return footer bytes
+     */
+    static ByteBuffer write(final Map<Byte, ByteBuffer> sections) {
+        return write(sections, 0);
+    }
+
+    /**
+     * Serializes header of a section whose payload is too big to be kept in memory and is written by the caller.
+     *
+     * @param kind kind of the section
+     * @param payloadSize size of the payload which follows the header
+     * @return header bytes
+     */
+    static ByteBuffer sectionHeader(final byte kind, final int payloadSize) {
+        return ByteBuffer.allocate(SECTION_HEADER_SIZE).put(kind).putInt(payloadSize).flip();
+    }
+
+    /**
+     * Size of a section with its header, see {@link #sectionHeader(byte, int)}.
+     */
+    static int sectionSize(final int payloadSize) {
+        return SECTION_HEADER_SIZE + payloadSize;
+    }
+
+    /**
+     * Serializes the rest of footer whose first sections are already written by the caller.
+     *
+     * @param sections payloads by kind
+     * @param writtenSize size of sections which are written right before the footer bytes
+     * @return footer bytes
+     */
+    static ByteBuffer write(final Map<Byte, ByteBuffer> sections, final int writtenSize) {
+        int sectionsSize = writtenSize;
+        for (final ByteBuffer payload : sections.values()) {
+            sectionsSize += SECTION_HEADER_SIZE + payload.remaining();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(sectionsSize - writtenSize + TRAILER_SIZE);
+        for (final Map.Entry<Byte, ByteBuffer> section : sections.entrySet()) {
+            buffer.put(section.getKey());
+            buffer.putInt(section.getValue().remaining());
+            buffer.put(section.getValue().duplicate());
+        }
+        buffer.putInt(sectionsSize);
+        buffer.putLong(MAGIC);
+        return buffer.flip();
+    }
+
+    /** End of cells, offsets and cell count, i.e. the whole file for tables without footer. */
+    long getTableEnd() {
+        return tableEnd;
+    }
+
+    @Nullable
+    ByteBuffer getSection(final byte kind) {
+        final ByteBuffer payload = sections.get(kind);
+        return payload == null ? null : payload.duplicate();
+    }
+}
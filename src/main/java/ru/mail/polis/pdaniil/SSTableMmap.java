@@ -1,12 +1,10 @@
 package ru.mail.polis.pdaniil;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.LongBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -15,8 +13,9 @@ import java.util.Iterator;
 public class SSTableMmap extends SSTable {
 
     private final int rowCount;
-    private final LongBuffer offsetArray;
-    private final ByteBuffer dataArray;
+    /* Offsets of cells follow the cells, block-based tables have none */
+    private final long offsetArrayOff;
+    private final MappedSegments data;
 
     /** MMapped SSTable implementation.
      *
@@ -24,43 +23,51 @@ public class SSTableMmap extends SSTable {
      * @throws IOException if unable to read SSTable files
      */
     public SSTableMmap(final Path file) throws IOException {
+        this(file, MappedSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * MMapped SSTable implementation, which maps the file in segments of given size.
+     *
+     * @param file SSTable file
+     * @param segmentSize size of mapped segments, power of two
+     * @throws IOException if unable to read SSTable file
+     */
+    SSTableMmap(final Path file, final int segmentSize) throws IOException {
         super(file);
-        
-        MappedByteBuffer mappped = null;
 
+        final long tableEnd;
         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
-            mappped = (MappedByteBuffer) channel
-                    .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
-                    .order(ByteOrder.BIG_ENDIAN);
+            tableEnd = readFooter(channel).getTableEnd();
+            data = new MappedSegments(channel, tableEnd, segmentSize);
         }
 
-        final int rowCountOff = mappped.limit() - Integer.BYTES;
-
-        final ByteBuffer rowCountDuplicate = mappped.duplicate();
-        rowCountDuplicate.position(rowCountOff);
-        rowCount = rowCountDuplicate.getInt();
-
-        final int offsetArrayOff = mappped.limit() - Integer.BYTES - Long.BYTES * rowCount;
-
-        final ByteBuffer offsetDuplicate = mappped.duplicate();
-        offsetDuplicate.position(offsetArrayOff);
-        offsetDuplicate.limit(rowCountOff);
-        offsetArray = offsetDuplicate.slice().asLongBuffer();
+        final long rowCountOff = tableEnd - Integer.BYTES;
+        rowCount = data.getInt(rowCountOff);
 
-        final ByteBuffer dataDuplicate = mappped.duplicate();
-        dataDuplicate.limit(offsetArrayOff);
-        dataArray = dataDuplicate.slice().asReadOnlyBuffer();
+        // Block-based tables have no offsets
+        offsetArrayOff = isBlockBased() ? rowCountOff : rowCountOff - Long.BYTES * (long) rowCount;
     }
 
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        countRead();
+        if (isBlockBased()) {
+            return blockIterator(from, to);
+        }
+
+        final int start = findStartIndex(from, 0, rowCount - 1);
+        final int end = isBelow(to) ? rowCount : findStartIndex(to, start, rowCount - 1);
+
         return new Iterator<>() {
 
-            private int position = findStartIndex(from, 0, rowCount - 1);
+            private int position = start;
 
             @Override
             public boolean hasNext() {
-                return position < rowCount;
+                return position < end;
             }
 
             @Override
@@ -71,38 +78,31 @@ public class SSTableMmap extends SSTable {
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        throw new UnsupportedOperationException("SSTable is immutable");
+    public long getSize() {
+        return size;
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        throw new UnsupportedOperationException("SSTable is immutable");
+    public long getVersion() {
+        return version;
     }
 
     @Override
-    public long getSize() {
-        return size;
+    Implementation getImplementation() {
+        return Implementation.MMAPPED;
     }
 
     @Override
-    public long getVersion() {
-        return version;
+    protected int getRowCount() {
+        return rowCount;
     }
 
     private long receiveOffset(final int index) {
-        return offsetArray.get(index);
+        return data.getLong(offsetArrayOff + Long.BYTES * (long) index);
     }
 
     private ByteBuffer parseKey(final long offset) {
-
-        final ByteBuffer duplicate = dataArray.duplicate();
-        duplicate.position((int) offset);
-        final long keySize = duplicate.getLong();
-
-        duplicate.limit((int) (duplicate.position() + keySize));
-
-        return duplicate.slice();
+        return data.slice(offset + Long.BYTES, (int) data.getLong(offset));
     }
 
     @Override
@@ -111,30 +111,19 @@ public class SSTableMmap extends SSTable {
     }
 
     private Cell parseCell(final long offset) {
-        final ByteBuffer cellDuplicate = dataArray.duplicate();
-        cellDuplicate.position((int) offset);
-        cellDuplicate.slice();
+        final int keySize = (int) data.getLong(offset);
+        final ByteBuffer key = data.slice(offset + Long.BYTES, keySize);
 
-        final ByteBuffer keyDuplicate = cellDuplicate.duplicate();
-        final long keySize = keyDuplicate.getLong();
-
-        keyDuplicate.limit((int) (keyDuplicate.position() + keySize));
-
-        final int timeStampOff = keyDuplicate.limit();
-
-        final ByteBuffer key = keyDuplicate.slice();
-
-        final ByteBuffer valueDuplicate = cellDuplicate.duplicate();
-        valueDuplicate.position(timeStampOff);
-        final long timeStamp = valueDuplicate.getLong();
-        final boolean tombstone = valueDuplicate.get() != 0;
+        final long timeStampOff = offset + Long.BYTES + keySize;
+        final long timeStamp = data.getLong(timeStampOff);
+        final boolean tombstone = data.get(timeStampOff + Long.BYTES) != 0;
 
         if (tombstone) {
             return Cell.create(key, Value.tombstone(timeStamp), getVersion());
         } else {
-            final long valueSize = valueDuplicate.getLong();
-            valueDuplicate.limit((int) (valueDuplicate.position() + valueSize));
-            final ByteBuffer value = valueDuplicate.slice();
+            final long valueSizeOff = timeStampOff + Long.BYTES + Byte.BYTES;
+            final int valueSize = (int) data.getLong(valueSizeOff);
+            final ByteBuffer value = data.slice(valueSizeOff + Long.BYTES, valueSize);
 
             return Cell.create(key, Value.of(timeStamp, value), getVersion());
         }
@@ -144,4 +133,9 @@ public class SSTableMmap extends SSTable {
     protected Cell parseCell(final int index) {
         return parseCell(receiveOffset(index));
     }
+
+    @Override
+    protected ByteBuffer readBlock(final long offset, final int size) {
+        return data.slice(offset, size);
+    }
 }
@@ -0,0 +1,73 @@
+package ru.mail.polis.pdaniil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sequence numbers of writes, stored in place of the write timestamp.
+ *
+ * <p>Numbers continue from the max number found in the storage, which tables record in their footers,
+ * so they are bigger than numbers given out before restart whatever the clock says.</p>
+ *
+ * <p>A number is published when the write is applied, and numbers are published in order,
+ * so readers never see a write without all writes before it.</p>
+ */
+final class Sequence {
+
+    private static final int LOGICAL_BITS = 20;
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 10_000;
+
+    private final AtomicLong allocated;
+    private final AtomicLong published;
+
+    /**
+     * Creates sequence.
+     *
+     * @param recovered max number found in the storage
+     */
+    Sequence(final long recovered) {
+        this.allocated = new AtomicLong(recovered);
+        this.published = new AtomicLong(recovered);
+    }
+
+    /**
+     * Returns a number bigger than numbers in tables which don't record their max number.
+     * They were written with the current time shifted left by {@link #LOGICAL_BITS} as the first number
+     * or with write timestamps, before sequence numbers were introduced.
+     * Such tables may hold numbers above it only if the clock went backwards.
+     */
+    static long fromClock() {
+        return System.currentTimeMillis() << LOGICAL_BITS;
+    }
+
+    /**
+     * Takes next number, which must be published afterwards even if the write fails.
+     */
+    long next() {
+        return allocated.incrementAndGet();
+    }
+
+    /**
+     * Publishes the number once all numbers before it are published.
+     */
+    void publish(final long sequence) {
+        int spins = 0;
+        while (published.get() != sequence - 1) {
+            if (spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                // Previous writer may wait for disk
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        published.set(sequence);
+    }
+
+    /**
+     * Returns the last number whose write and all writes before it are applied.
+     */
+    long visible() {
+        return published.get();
+    }
+}
@@ -0,0 +1,420 @@
+package ru.mail.polis.pdaniil;
+
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.DAO;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link DAO} which spreads keys over independent {@link MyDAO} shards,
+ * so flushes and compactions of different shards run in parallel.
+ *
+ * <p>Keys are routed by hash, so shards get even load however alike the keys are,
+ * e.g. when all of them share a prefix. Ordered reads merge records of all shards.
+ * Each shard lives in its own {@code shard_<i>} subdirectory.</p>
+ *
+ * <p>Batches and snapshots are atomic within a shard only.</p>
+ */
+public class ShardedDAO implements DAO {
+
+    public static final int MAX_SHARDS = 256;
+
+    private static final String SHARD_DIR_PREFIX = "shard_";
+    // Seeded unlike the hash of Bloom filters, so keys of a shard don't share bits of their filter hashes
+    private static final HashFunction SHARD_HASH = Hashing.murmur3_128(0x5AA4D);
+
+    private final MyDAO[] shards;
+    private final BlockCache blockCache;
+    private final RowCache rowCache;
+
+    /**
+     * Sharded DAO implementation.
+     *
+     * @param dataDir directory for shard directories
+     * @param maxHeap max memory, allocated for JVM, it is divided between shards
+     * @param shardCount count of shards, must be the same every time the directory is opened
+     * @param config tuning parameters of every shard, the caches are shared by all of them
+     * @throws IOException if unable to open shards
+     */
+    public ShardedDAO(
+            final Path dataDir,
+            final long maxHeap,
+            final int shardCount,
+            final Config config) throws IOException {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS);
+        }
+        checkExistingShards(dataDir, shardCount);
+        // Shards share direct memory of the JVM
+        MyDAO.checkDirectMemory(config, MyDAO.allowableMemTableSize(maxHeap / shardCount, config), shardCount);
+
+        shards = new MyDAO[shardCount];
+        blockCache = new BlockCache(config.getBlockCacheSize());
+        rowCache = new RowCache(config.getRowCacheSize());
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                final Path shardDir = Files.createDirectories(dataDir.resolve(SHARD_DIR_PREFIX + i));
+                shards[i] = new MyDAO(shardDir, maxHeap / shardCount, config, blockCache, rowCache);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeOpened(e);
+            throw e;
+        }
+    }
+
+    private static void checkExistingShards(final Path dataDir, final int shardCount) {
+        final File[] existing = dataDir.toFile().listFiles(
+                file -> file.isDirectory() && file.getName().startsWith(SHARD_DIR_PREFIX));
+        if (existing != null && existing.length != 0 && existing.length != shardCount) {
+            throw new IllegalStateException(
+                    "Directory has " + existing.length + " shards, but opened with " + shardCount);
+        }
+    }
+
+    private void closeOpened(final Exception cause) {
+        for (final MyDAO shard : shards) {
+            if (shard == null) {
+                break;
+            }
+            try {
+                shard.close();
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Finds shard of the key by hash of all its bytes.
+     */
+    private int shardOf(final ByteBuffer key) {
+        return Math.floorMod(SHARD_HASH.hashBytes(key.duplicate()).asInt(), shards.length);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+
+        final List<Iterator<Record>> iterators = new ArrayList<>();
+        for (final MyDAO shard : shards) {
+            iterators.add(shard.range(from, to));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+    }
+
+    /**
+     * Merges streams of shards, parallel streams split the merged records in batches.
+     */
+    @NotNull
+    @Override
+    public Stream<Record> rangeStream(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Stream.empty();
+        }
+
+        final List<Stream<Record>> streams = new ArrayList<>();
+        try {
+            for (final MyDAO shard : shards) {
+                streams.add(shard.rangeStream(from, to));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(streams);
+            throw e;
+        }
+
+        final List<Iterator<Record>> iterators = new ArrayList<>();
+        for (final Stream<Record> stream : streams) {
+            iterators.add(stream.iterator());
+        }
+        final Spliterator<Record> records = Spliterators.spliteratorUnknownSize(
+                Iterators.mergeSorted(iterators, Comparator.naturalOrder()),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        return StreamSupport.stream(records, false).onClose(() -> closeAll(streams));
+    }
+
+    private static void closeAll(final List<Stream<Record>> streams) {
+        for (final Stream<Record> stream : streams) {
+            stream.close();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> prefix(@NotNull final ByteBuffer prefix) throws IOException {
+        final List<Iterator<Record>> iterators = new ArrayList<>();
+        for (final MyDAO shard : shards) {
+            iterators.add(shard.prefix(prefix));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (from != null && to != null && from.compareTo(to) < 0) {
+            return Iters.empty();
+        }
+
+        final List<Iterator<Record>> iterators = new ArrayList<>();
+        for (final MyDAO shard : shards) {
+            iterators.add(shard.descendingRange(from, to));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.reverseOrder());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<ByteBuffer> keys(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+
+        final List<Iterator<ByteBuffer>> iterators = new ArrayList<>();
+        for (final MyDAO shard : shards) {
+            iterators.add(shard.keys(from, to));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        return shards[shardOf(key)].get(key);
+    }
+
+    /**
+     * Splits the keys by shards, every shard looks its keys up in one batch.
+     */
+    @NotNull
+    @Override
+    public List<ByteBuffer> multiGet(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final List<List<ByteBuffer>> shardKeys = new ArrayList<>();
+        final List<List<Integer>> shardIndices = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            shardKeys.add(new ArrayList<>());
+            shardIndices.add(new ArrayList<>());
+        }
+        int index = 0;
+        for (final ByteBuffer key : keys) {
+            final int shard = shardOf(key);
+            shardKeys.get(shard).add(key);
+            shardIndices.get(shard).add(index++);
+        }
+
+        final ByteBuffer[] values = new ByteBuffer[keys.size()];
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shardKeys.get(shard).isEmpty()) {
+                continue;
+            }
+            final List<ByteBuffer> shardValues = shards[shard].multiGet(shardKeys.get(shard));
+            final List<Integer> indices = shardIndices.get(shard);
+            for (int i = 0; i < indices.size(); i++) {
+                values[indices.get(i)] = shardValues.get(i);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<ByteBuffer> getAsync(@NotNull final ByteBuffer key) {
+        return shards[shardOf(key)].getAsync(key);
+    }
+
+    /**
+     * Reads shards of the range concurrently and joins their records in order.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<List<Record>> rangeAsync(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        final List<CompletableFuture<List<Record>>> reads = new ArrayList<>();
+        for (final MyDAO shard : shards) {
+            reads.add(shard.rangeAsync(from, to));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final List<Iterator<Record>> iterators = new ArrayList<>();
+            int count = 0;
+            for (final CompletableFuture<List<Record>> read : reads) {
+                final List<Record> shardRecords = read.join();
+                iterators.add(shardRecords.iterator());
+                count += shardRecords.size();
+            }
+            final List<Record> records = new ArrayList<>(count);
+            Iterators.addAll(records, Iterators.mergeSorted(iterators, Comparator.naturalOrder()));
+            return records;
+        });
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        shards[shardOf(key)].upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        shards[shardOf(key)].remove(key);
+    }
+
+    /**
+     * Splits the batch by shards, operations of every shard are applied atomically.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        final WriteBatch[] parts = new WriteBatch[shards.length];
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            final int shard = shardOf(operation.getKey());
+            if (parts[shard] == null) {
+                parts[shard] = new WriteBatch();
+            }
+            final ByteBuffer value = operation.getValue();
+            if (value == null) {
+                parts[shard].remove(operation.getKey());
+            } else {
+                parts[shard].upsert(operation.getKey(), value);
+            }
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            if (parts[i] != null) {
+                shards[i].write(parts[i]);
+            }
+        }
+    }
+
+    /**
+     * Takes snapshots of all shards one after another, each of them is consistent on its own.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final Snapshot[] snapshots = new Snapshot[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            snapshots[i] = shards[i].snapshot();
+        }
+
+        return new Snapshot() {
+
+            @NotNull
+            @Override
+            public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+                return range(from, null);
+            }
+
+            @NotNull
+            @Override
+            public Iterator<Record> range(
+                    @NotNull final ByteBuffer from,
+                    @Nullable final ByteBuffer to) throws IOException {
+                if (to != null && from.compareTo(to) > 0) {
+                    return Iters.empty();
+                }
+
+                final List<Iterator<Record>> iterators = new ArrayList<>();
+                for (final Snapshot snapshot : snapshots) {
+                    iterators.add(snapshot.range(from, to));
+                }
+                return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+            }
+
+            @NotNull
+            @Override
+            public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+                return snapshots[shardOf(key)].get(key);
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (final Snapshot snapshot : snapshots) {
+                    snapshot.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns cache of SSTable blocks shared by all shards.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Returns cache of point lookup results shared by all shards.
+     */
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    @Override
+    public void compact() throws IOException {
+        for (final MyDAO shard : shards) {
+            shard.compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (final MyDAO shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
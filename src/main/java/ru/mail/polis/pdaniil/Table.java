@@ -9,10 +9,6 @@ public interface Table {
 
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
-    void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value);
-
-    void remove(@NotNull ByteBuffer key);
-
     long getSize();
     
     long getVersion();
@@ -0,0 +1,616 @@
+package ru.mail.polis.pdaniil;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.DAO;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Immutable view of all tables of the storage at some moment.
+ * Readers take the current set once, so a table is never seen twice or missed
+ * while it moves from the flush queue to disk.
+ */
+final class TableSet {
+
+    private static final Comparator<SSTable> NEWEST_FIRST =
+            Comparator.comparingLong(SSTable::getVersion).reversed();
+
+    private final MutableTable memTable;
+    private final ImmutableList<MutableTable> flushing;
+    private final ImmutableList<SSTable> ssTables;
+
+    private TableSet(
+            final MutableTable memTable,
+            final ImmutableList<MutableTable> flushing,
+            final ImmutableList<SSTable> ssTables) {
+        this.memTable = memTable;
+        this.flushing = flushing;
+        this.ssTables = ssTables;
+    }
+
+    static TableSet create(final MutableTable memTable, final List<SSTable> ssTables) {
+        return new TableSet(memTable, ImmutableList.of(), ImmutableList.sortedCopyOf(NEWEST_FIRST, ssTables));
+    }
+
+    /** Current writable table. */
+    MutableTable getMemTable() {
+        return memTable;
+    }
+
+    /** Frozen tables waiting to be flushed, oldest first. */
+    List<MutableTable> getFlushing() {
+        return flushing;
+    }
+
+    /** Tables on disk, newest first. */
+    List<SSTable> getSSTables() {
+        return ssTables;
+    }
+
+    /**
+     * Provides live cells of all tables as they were after the write with given sequence number.
+     * SSTables hold only writes made before any reader could take the set,
+     * so only memtables are filtered by the sequence number.
+     * SSTables without keys in the range are not opened, others stop at the bound by themselves.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over cells
+     * @throws IOException if unable to read SSTables
+     */
+    Iterator<Cell> cellIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) throws IOException {
+        return cellIterator(from, to, timeStamp, ssTable -> true);
+    }
+
+    private Iterator<Cell> cellIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp,
+            final Predicate<SSTable> candidate) throws IOException {
+
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.overlaps(from, to) && candidate.test(ssTable)) {
+                iterators.add(ssTable.iterator(from, to));
+            }
+        }
+        for (final MutableTable frozen : flushing) {
+            iterators.add(until(frozen.iterator(from, timeStamp), to));
+        }
+        iterators.add(until(memTable.iterator(from, timeStamp), to));
+
+        return merge(iterators);
+    }
+
+    private static Iterator<Cell> until(final Iterator<Cell> cells, @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return cells;
+        }
+        // No write has the biggest sequence number, so the bound sorts before every cell of the key
+        return Iters.until(cells, Cell.create(to, Value.tombstone(Long.MAX_VALUE), Long.MAX_VALUE));
+    }
+
+    /**
+     * Chooses keys which split the range into parts with similar amount of SSTable data.
+     * Memtables are small, so they are not sampled.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @param parts desired count of parts
+     * @return ascending distinct keys inside of the range, fewer than parts if tables are small
+     * @throws IOException if unable to read SSTables
+     */
+    List<ByteBuffer> splitKeys(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final int parts) throws IOException {
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.overlaps(from, to)) {
+                samples.addAll(ssTable.sampleKeys(from, to));
+            }
+        }
+        if (samples.isEmpty()) {
+            return samples;
+        }
+
+        // Every sample stands for about a block of some table, so quantiles of samples balance the parts
+        samples.sort(Comparator.naturalOrder());
+        final List<ByteBuffer> splits = new ArrayList<>();
+        for (int part = 1; part < parts; part++) {
+            final ByteBuffer key = samples.get((int) ((long) samples.size() * part / parts));
+            if (splits.isEmpty() || splits.get(splits.size() - 1).compareTo(key) < 0) {
+                splits.add(key);
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Finds the newest cell of the key without merging tables.
+     * Tables are probed from the newest one and the first cell found wins,
+     * SSTables whose Bloom filter rules the key out are not read.
+     *
+     * @param key key to find
+     * @param timeStamp sequence number of the last visible write
+     * @param filterStats counters of filter checks
+     * @return the newest cell, possibly tombstone, or null if no table has the key
+     * @throws IOException if unable to read SSTables
+     */
+    @Nullable
+    Cell get(
+            @NotNull final ByteBuffer key,
+            final long timeStamp,
+            @NotNull final FilterStats filterStats) throws IOException {
+
+        final Cell cell = getFromMemTables(key, timeStamp);
+        if (cell != null || ssTables.isEmpty()) {
+            return cell;
+        }
+
+        final long keyHash = BloomFilter.hash(key);
+        for (final SSTable ssTable : ssTables) {
+            if (!ssTable.mightContain(keyHash)) {
+                filterStats.recordNegative();
+                continue;
+            }
+
+            final Cell stored = ssTable.get(key);
+            if (ssTable.hasFilter()) {
+                filterStats.recordPositive(stored != null);
+            }
+            if (stored != null) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the newest cells of many keys like {@link #get(ByteBuffer, long, FilterStats)} does.
+     * Every SSTable is swept once for the keys which are not found in newer tables and pass its Bloom filter.
+     *
+     * @param keys ascending distinct keys
+     * @param timeStamp sequence number of the last visible write
+     * @param filterStats counters of filter checks
+     * @return the newest cells, possibly tombstones, at indices of their keys, null where no table has the key
+     * @throws IOException if unable to read SSTables
+     */
+    Cell[] getAll(
+            @NotNull final List<ByteBuffer> keys,
+            final long timeStamp,
+            @NotNull final FilterStats filterStats) throws IOException {
+        final Cell[] cells = new Cell[keys.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            cells[i] = getFromMemTables(keys.get(i), timeStamp);
+            if (cells[i] == null) {
+                pending.add(i);
+            }
+        }
+        if (pending.isEmpty() || ssTables.isEmpty()) {
+            return cells;
+        }
+
+        final long[] keyHashes = new long[keys.size()];
+        for (final int i : pending) {
+            keyHashes[i] = BloomFilter.hash(keys.get(i));
+        }
+        for (final SSTable ssTable : ssTables) {
+            final List<Integer> candidates = new ArrayList<>();
+            final List<ByteBuffer> candidateKeys = new ArrayList<>();
+            for (final int i : pending) {
+                if (ssTable.mightContain(keyHashes[i])) {
+                    candidates.add(i);
+                    candidateKeys.add(keys.get(i));
+                } else {
+                    filterStats.recordNegative();
+                }
+            }
+            if (candidates.isEmpty()) {
+                continue;
+            }
+
+            final Cell[] stored = ssTable.getAll(candidateKeys);
+            for (int j = 0; j < stored.length; j++) {
+                if (ssTable.hasFilter()) {
+                    filterStats.recordPositive(stored[j] != null);
+                }
+                cells[candidates.get(j)] = stored[j];
+            }
+
+            final List<Integer> notFound = new ArrayList<>();
+            for (final int i : pending) {
+                if (cells[i] == null) {
+                    notFound.add(i);
+                }
+            }
+            if (notFound.isEmpty()) {
+                break;
+            }
+            pending = notFound;
+        }
+        return cells;
+    }
+
+    /**
+     * Finds the newest cell of the key like {@link #get(ByteBuffer, long, FilterStats)} does,
+     * but SSTables are read without blocking the caller. The next table is probed once the read
+     * of the previous one completes, so the chain runs on threads which complete reads.
+     *
+     * @param key key to find
+     * @param timeStamp sequence number of the last visible write
+     * @param filterStats counters of filter checks
+     * @return future of the newest cell, possibly tombstone, or of null if no table has the key
+     */
+    CompletableFuture<Cell> getAsync(
+            @NotNull final ByteBuffer key,
+            final long timeStamp,
+            @NotNull final FilterStats filterStats) {
+        final Cell cell = getFromMemTables(key, timeStamp);
+        if (cell != null || ssTables.isEmpty()) {
+            return CompletableFuture.completedFuture(cell);
+        }
+        return probeAsync(key, BloomFilter.hash(key), 0, filterStats);
+    }
+
+    private CompletableFuture<Cell> probeAsync(
+            final ByteBuffer key,
+            final long keyHash,
+            final int first,
+            final FilterStats filterStats) {
+        for (int i = first; i < ssTables.size(); i++) {
+            final SSTable ssTable = ssTables.get(i);
+            if (!ssTable.mightContain(keyHash)) {
+                filterStats.recordNegative();
+                continue;
+            }
+
+            final int next = i + 1;
+            return ssTable.getAsync(key).thenCompose(stored -> {
+                if (ssTable.hasFilter()) {
+                    filterStats.recordPositive(stored != null);
+                }
+                if (stored != null) {
+                    return CompletableFuture.completedFuture(stored);
+                }
+                return probeAsync(key, keyHash, next, filterStats);
+            });
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Nullable
+    private Cell getFromMemTables(final ByteBuffer key, final long timeStamp) {
+        final Cell cell = memTable.get(key, timeStamp);
+        if (cell != null) {
+            return cell;
+        }
+        for (int i = flushing.size() - 1; i >= 0; i--) {
+            final Cell frozen = flushing.get(i).get(key, timeStamp);
+            if (frozen != null) {
+                return frozen;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads live records of the range into memory without blocking the caller on SSTable reads.
+     * Blocks of all SSTables are requested at once, memtables are merged in when they arrive.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @param timeStamp sequence number of the last visible write
+     * @return future of records in ascending order
+     */
+    CompletableFuture<List<Record>> recordsAsync(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) {
+        final List<CompletableFuture<List<Cell>>> reads = new ArrayList<>();
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.overlaps(from, to)) {
+                reads.add(ssTable.cellsAsync(from, to));
+            }
+        }
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final List<Iterator<Cell>> iterators = new ArrayList<>();
+            for (final CompletableFuture<List<Cell>> read : reads) {
+                iterators.add(read.join().iterator());
+            }
+            for (final MutableTable frozen : flushing) {
+                iterators.add(until(frozen.iterator(from, timeStamp), to));
+            }
+            iterators.add(until(memTable.iterator(from, timeStamp), to));
+
+            final List<Record> records = new ArrayList<>();
+            merge(iterators).forEachRemaining(cell -> records.add(toRecord(cell)));
+            return records;
+        });
+    }
+
+    /**
+     * Provides live cells with keys in (to, from] in descending order,
+     * otherwise the same as {@link #cellIterator(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param from first key (inclusive) or null to start from the largest key
+     * @param to last key (exclusive) or null for keys down to the smallest one
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over cells
+     * @throws IOException if unable to read SSTables
+     */
+    Iterator<Cell> descendingCellIterator(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) throws IOException {
+
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.overlapsDescending(from, to)) {
+                iterators.add(downTo(ssTable.descendingIterator(from), to));
+            }
+        }
+        for (final MutableTable frozen : flushing) {
+            iterators.add(downTo(frozen.descendingIterator(from, timeStamp), to));
+        }
+        iterators.add(downTo(memTable.descendingIterator(from, timeStamp), to));
+
+        return new MergeIterator(iterators, true);
+    }
+
+    private static Iterator<Cell> downTo(final Iterator<Cell> cells, @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return cells;
+        }
+        return new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                if (cells.hasNext()) {
+                    final Cell cell = cells.next();
+                    if (cell.getKey().compareTo(to) > 0) {
+                        return cell;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Provides records of a set retained by the caller.
+     * The set is released when the iterator is exhausted or garbage collected.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over records
+     * @throws IOException if unable to read SSTables, the set is released then
+     */
+    Iterator<Record> pinnedRecords(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) throws IOException {
+        return pin(() -> cellIterator(from, to, timeStamp), TableSet::toRecord);
+    }
+
+    /**
+     * Provides records with keys starting with the prefix of a set retained by the caller,
+     * see {@link #pinnedRecords(ByteBuffer, ByteBuffer, long)}.
+     * SSTables whose prefix filter rules the prefix out are not opened.
+     *
+     * @param prefix prefix of keys
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over records
+     * @throws IOException if unable to read SSTables, the set is released then
+     */
+    Iterator<Record> pinnedPrefix(
+            @NotNull final ByteBuffer prefix,
+            final long timeStamp) throws IOException {
+        final ByteBuffer to = DAO.prefixEnd(prefix);
+        return pin(() -> cellIterator(prefix, to, timeStamp, ssTable -> ssTable.mightContainPrefix(prefix)),
+                TableSet::toRecord);
+    }
+
+    /**
+     * Provides records of a set retained by the caller in descending order of keys,
+     * see {@link #pinnedRecords(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param from first key (inclusive) or null to start from the largest key
+     * @param to last key (exclusive) or null for keys down to the smallest one
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over records
+     * @throws IOException if unable to read SSTables, the set is released then
+     */
+    Iterator<Record> pinnedDescendingRecords(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) throws IOException {
+        return pin(() -> descendingCellIterator(from, to, timeStamp), TableSet::toRecord);
+    }
+
+    /**
+     * Provides keys of a set retained by the caller without reading values.
+     * The set is released when the iterator is exhausted or garbage collected.
+     *
+     * @param from first key (inclusive)
+     * @param to last key (exclusive) or null for keys up to the end
+     * @param timeStamp sequence number of the last visible write
+     * @return iterator over keys
+     * @throws IOException if unable to read SSTables, the set is released then
+     */
+    Iterator<ByteBuffer> pinnedKeys(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timeStamp) throws IOException {
+        return pin(() -> cellIterator(from, to, timeStamp), cell -> cell.getKey().asReadOnlyBuffer());
+    }
+
+    static Record toRecord(final Cell cell) {
+        return Record.of(cell.getKey(), cell.getValue().getData());
+    }
+
+    private <T> Iterator<T> pin(final CellSource source, final Function<Cell, T> transform) throws IOException {
+        final Iterator<Cell> cells;
+        try {
+            cells = source.open();
+        } catch (IOException | RuntimeException e) {
+            releaseSSTables();
+            throw e;
+        }
+
+        return new PinnedIterator<>(Iterators.transform(cells, transform::apply), this::releaseSSTables);
+    }
+
+    @FunctionalInterface
+    private interface CellSource {
+
+        Iterator<Cell> open() throws IOException;
+    }
+
+    /**
+     * Merges cells of several tables leaving the newest live cell of each key.
+     *
+     * @param iterators iterators over cells of tables
+     * @return iterator over live cells
+     */
+    static Iterator<Cell> merge(final List<Iterator<Cell>> iterators) {
+        return new MergeIterator(iterators);
+    }
+
+    /**
+     * Moves current memtable to the flush queue.
+     *
+     * @param fresh new writable table
+     * @return new table set
+     */
+    TableSet freeze(final MutableTable fresh) {
+        final ImmutableList<MutableTable> newFlushing = ImmutableList.<MutableTable>builder()
+                .addAll(flushing)
+                .add(memTable)
+                .build();
+        return new TableSet(fresh, newFlushing, ssTables);
+    }
+
+    /**
+     * Replaces flushed memtable with its SSTable.
+     * Memtables are flushed in order, so the new table is the newest one on disk.
+     *
+     * @param frozen table from the flush queue
+     * @param ssTable table written from it
+     * @return new table set
+     */
+    TableSet flushed(final MutableTable frozen, final SSTable ssTable) {
+        final ImmutableList.Builder<MutableTable> newFlushing = ImmutableList.builder();
+        for (final MutableTable table : flushing) {
+            if (table != frozen) {
+                newFlushing.add(table);
+            }
+        }
+        final ImmutableList<SSTable> newSSTables = ImmutableList.<SSTable>builder()
+                .add(ssTable)
+                .addAll(ssTables)
+                .build();
+        return new TableSet(memTable, newFlushing.build(), newSSTables);
+    }
+
+    /**
+     * Replaces compacted SSTables with the result of compaction.
+     * Tables flushed while compaction was running are kept.
+     *
+     * @param replaced tables which were compacted
+     * @param result table written from them
+     * @return new table set
+     */
+    TableSet compacted(final List<SSTable> replaced, final SSTable result) {
+        final List<SSTable> newSSTables = new ArrayList<>();
+        newSSTables.add(result);
+        for (final SSTable table : ssTables) {
+            if (!replaced.contains(table)) {
+                newSSTables.add(table);
+            }
+        }
+        return new TableSet(memTable, flushing, ImmutableList.sortedCopyOf(NEWEST_FIRST, newSSTables));
+    }
+
+    /**
+     * Replaces an SSTable with the same table opened by another reader.
+     *
+     * @param replaced table in the set
+     * @param reopened table of the same file
+     * @return new table set
+     */
+    TableSet replaced(final SSTable replaced, final SSTable reopened) {
+        final List<SSTable> newSSTables = new ArrayList<>(ssTables.size());
+        for (final SSTable table : ssTables) {
+            newSSTables.add(table == replaced ? reopened : table);
+        }
+        return new TableSet(memTable, flushing, ImmutableList.copyOf(newSSTables));
+    }
+
+    /**
+     * Takes a reference to every SSTable, so they stay open while the set is read.
+     *
+     * @return false if some table is already retired, nothing is retained then
+     */
+    boolean retainSSTables() {
+        for (int i = 0; i < ssTables.size(); i++) {
+            if (!ssTables.get(i).retain()) {
+                for (int j = 0; j < i; j++) {
+                    ssTables.get(j).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void releaseSSTables() {
+        for (final SSTable table : ssTables) {
+            table.release();
+        }
+    }
+
+    /** Size of frozen memtables waiting for flush. */
+    long getPendingFlushBytes() {
+        long bytes = 0;
+        for (final MutableTable table : flushing) {
+            bytes += table.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes which a full compaction would have to merge into the biggest table.
+     */
+    long getCompactionDebt() {
+        long total = 0;
+        long biggest = 0;
+        for (final SSTable table : ssTables) {
+            total += table.getSize();
+            biggest = Math.max(biggest, table.getSize());
+        }
+        return total - biggest;
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis.pdaniil;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Snapshot of {@link MyDAO} made of retained tables and the last visible sequence number.
+ * Memtables keep older versions of keys, so writes to them don't change the view.
+ */
+final class TableSnapshot implements Snapshot {
+
+    private final TableSet tables;
+    private final long timeStamp;
+    private final FilterStats filterStats;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates snapshot.
+     *
+     * @param tables tables retained for the snapshot
+     * @param timeStamp sequence number of the last visible write
+     * @param filterStats counters of Bloom filter checks of the storage
+     */
+    TableSnapshot(final TableSet tables, final long timeStamp, final FilterStats filterStats) {
+        this.tables = tables;
+        this.timeStamp = timeStamp;
+        this.filterStats = filterStats;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        if (closed.get() || !tables.retainSSTables()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        return tables.pinnedRecords(from, to, timeStamp);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        if (closed.get() || !tables.retainSSTables()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        final Cell cell;
+        try {
+            cell = tables.get(key.duplicate(), timeStamp, filterStats);
+        } finally {
+            tables.releaseSSTables();
+        }
+        if (cell == null || cell.getValue().isRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return cell.getValue().getData().asReadOnlyBuffer();
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<ByteBuffer> getAsync(@NotNull final ByteBuffer key) {
+        if (closed.get() || !tables.retainSSTables()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        final CompletableFuture<Cell> cell;
+        try {
+            cell = tables.getAsync(key.duplicate(), timeStamp, filterStats);
+        } catch (RuntimeException e) {
+            tables.releaseSSTables();
+            throw e;
+        }
+        return cell.thenCompose(found -> {
+            if (found == null || found.getValue().isRemoved()) {
+                return CompletableFuture.<ByteBuffer>failedFuture(new NoSuchElementException("Not found"));
+            }
+            return CompletableFuture.completedFuture(found.getValue().getData().asReadOnlyBuffer());
+        }).whenComplete((value, e) -> tables.releaseSSTables());
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            tables.releaseSSTables();
+        }
+    }
+}
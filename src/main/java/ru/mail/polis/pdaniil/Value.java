@@ -1,29 +1,41 @@
 package ru.mail.polis.pdaniil;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 final class Value implements Comparable<Value> {
 
     private final long timeStamp;
     private final boolean tombstone;
-    private final ByteBuffer data;
+    private final Loader loader;
+    /* Loaded on first access if the value was read without data, races only repeat the load */
+    private ByteBuffer data;
 
-    private Value(final long timeStamp, final boolean tombstone, final ByteBuffer data) {
+    private Value(final long timeStamp, final boolean tombstone, final ByteBuffer data, final Loader loader) {
         this.timeStamp = timeStamp;
         this.tombstone = tombstone;
         this.data = data;
+        this.loader = loader;
     }
 
-    public static Value of(final ByteBuffer data) {
-        return new Value(System.currentTimeMillis(), false, data);
+    private Value(final long timeStamp, final boolean tombstone, final ByteBuffer data) {
+        this(timeStamp, tombstone, data, null);
     }
 
     public static Value of(final long timeStamp, final ByteBuffer data) {
         return new Value(timeStamp, false, data);
     }
 
-    public static Value tombstone() {
-        return new Value(System.currentTimeMillis(), true, null);
+    /**
+     * Creates value whose data stays in the table until somebody needs it,
+     * so merges and key-only scans don't read data of values they skip.
+     *
+     * @param timeStamp time stamp of the value
+     * @param loader reads data of the value
+     * @return live value
+     */
+    static Value lazy(final long timeStamp, final Loader loader) {
+        return new Value(timeStamp, false, null, loader);
     }
 
     public static Value tombstone(final long timeStamp) {
@@ -39,6 +51,13 @@ final class Value implements Comparable<Value> {
     }
 
     public ByteBuffer getData() {
+        if (data == null && loader != null) {
+            try {
+                data = loader.load();
+            } catch (IOException e) {
+                throw new CellParsingException("Unable to read value", e);
+            }
+        }
         return data;
     }
 
@@ -48,4 +67,12 @@ final class Value implements Comparable<Value> {
         return Long.compare(o.getTimeStamp(), this.getTimeStamp());
     }
 
+    /**
+     * Reads data of a value which was not loaded with its cell.
+     */
+    @FunctionalInterface
+    interface Loader {
+
+        ByteBuffer load() throws IOException;
+    }
 }
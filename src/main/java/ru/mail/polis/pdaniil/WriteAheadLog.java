@@ -0,0 +1,469 @@
+package ru.mail.polis.pdaniil;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.WriteBatch;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the current memtable.
+ *
+ * <p>Each memtable has its own segment file, which is retired
+ * as soon as the memtable is flushed to SSTable.</p>
+ */
+public final class WriteAheadLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    static final String LOG_FILE_PREFIX = "log_";
+    static final String LOG_FILE_SUFFIX = ".wal";
+    private static final Pattern LOG_NAME_PATTERN = Pattern.compile(LOG_FILE_PREFIX + "(\\d+)" + LOG_FILE_SUFFIX);
+
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final byte UPSERT = 0;
+    private static final byte REMOVE = 1;
+
+    public enum SyncMode {
+        /** Every write waits for its record to be forced to disk, concurrent writers share one force. */
+        ALWAYS,
+        /** Log is forced to disk periodically by a background thread. */
+        PERIODIC,
+        /** Log is never forced explicitly, it only survives process crashes. */
+        NONE
+    }
+
+    /**
+     * Receives operations read from the log.
+     */
+    interface Replayer {
+
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long timeStamp);
+
+        void remove(@NotNull ByteBuffer key, long timeStamp);
+    }
+
+    /**
+     * Feeds operations of one segment to replayer.
+     */
+    interface SegmentReader {
+
+        void replayTo(@NotNull Replayer replayer) throws IOException;
+    }
+
+    /**
+     * Replays one segment and persists replayed data.
+     */
+    interface Recovery {
+
+        void recover(@NotNull SegmentReader segment) throws IOException;
+    }
+
+    private final Path logDir;
+    private final SyncMode syncMode;
+    @Nullable
+    private final ScheduledExecutorService syncer;
+
+    private long segmentCounter;
+    private volatile Segment current;
+
+    private WriteAheadLog(
+            final Path logDir,
+            final SyncMode syncMode,
+            final long syncPeriodMillis,
+            final long lastSegmentId) throws IOException {
+        this.logDir = logDir;
+        this.syncMode = syncMode;
+        this.segmentCounter = lastSegmentId;
+        this.current = new Segment(logDir, ++segmentCounter);
+
+        if (syncMode == SyncMode.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("wal-sync-%d")
+                    .setDaemon(true)
+                    .build());
+            syncer.scheduleWithFixedDelay(
+                    this::syncCurrent,
+                    syncPeriodMillis,
+                    syncPeriodMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Replays existing log segments in order of their creation and deletes them
+     * once the replayed data is persisted, then starts a new segment.
+     *
+     * @param logDir directory with log segments
+     * @param syncMode when appended records are forced to disk
+     * @param syncPeriodMillis period of background sync for {@link SyncMode#PERIODIC}
+     * @param recovery receives replayed operations of every segment and persists them
+     * @return log ready for appends
+     * @throws IOException if unable to read or persist log segments
+     */
+    static WriteAheadLog recover(
+            final Path logDir,
+            final SyncMode syncMode,
+            final long syncPeriodMillis,
+            final Recovery recovery) throws IOException {
+
+        final List<Path> segments = findSegments(logDir);
+        long lastSegmentId = 0;
+
+        for (final Path segment : segments) {
+            lastSegmentId = getSegmentId(segment);
+            recovery.recover(replayer -> replay(segment, replayer));
+            Files.delete(segment);
+        }
+
+        return new WriteAheadLog(logDir, syncMode, syncPeriodMillis, lastSegmentId);
+    }
+
+    private static List<Path> findSegments(final Path logDir) throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDir)) {
+            for (final Path file : stream) {
+                if (LOG_NAME_PATTERN.matcher(file.getFileName().toString()).matches()) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::getSegmentId));
+        return segments;
+    }
+
+    private static long getSegmentId(final Path segment) {
+        final Matcher matcher = LOG_NAME_PATTERN.matcher(segment.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("File name doesn't match accepted format");
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Streams records of the segment to replayer.
+     * Replay stops at the first torn or corrupted record, which is the tail written during a crash.
+     */
+    private static void replay(final Path segment, final Replayer replayer) throws IOException {
+        final CRC32 crc = new CRC32();
+        final long segmentSize = Files.size(segment);
+        long position = 0;
+
+        try (InputStream in = Files.newInputStream(segment);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+
+            while (true) {
+                final int bodySize;
+                final int checksum;
+                try {
+                    bodySize = data.readInt();
+                    checksum = data.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                position += HEADER_SIZE;
+
+                if (bodySize <= 0 || bodySize > segmentSize - position) {
+                    log.warn("Torn record at the end of {}", segment);
+                    return;
+                }
+
+                final byte[] body = new byte[bodySize];
+                data.readFully(body);
+                position += bodySize;
+
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch in {}, skipping the rest of the log", segment);
+                    return;
+                }
+
+                applyRecord(ByteBuffer.wrap(body), replayer);
+            }
+        }
+    }
+
+    private static void applyRecord(final ByteBuffer body, final Replayer replayer) {
+        final long timeStamp = body.getLong();
+        final int count = body.getInt();
+
+        for (int i = 0; i < count; i++) {
+            final byte type = body.get();
+            final ByteBuffer key = readChunk(body);
+            if (type == UPSERT) {
+                replayer.upsert(key, readChunk(body), timeStamp);
+            } else {
+                replayer.remove(key, timeStamp);
+            }
+        }
+    }
+
+    private static ByteBuffer readChunk(final ByteBuffer body) {
+        final int size = body.getInt();
+        final ByteBuffer chunk = body.duplicate();
+        chunk.limit(chunk.position() + size);
+        body.position(body.position() + size);
+        return chunk.slice();
+    }
+
+    /**
+     * Appends upsert and waits for it according to sync mode.
+     *
+     * @param key key to upsert
+     * @param value value to upsert
+     * @param timeStamp sequence number of the write
+     * @throws IOException if unable to write or sync log
+     */
+    void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timeStamp) throws IOException {
+        final ByteBuffer record = allocateRecord(
+                1 + Integer.BYTES + key.remaining() + Integer.BYTES + value.remaining());
+        record.putLong(timeStamp).putInt(1);
+        putUpsert(record, key, value);
+        write(record);
+    }
+
+    /**
+     * Appends remove and waits for it according to sync mode.
+     *
+     * @param key key to remove
+     * @param timeStamp sequence number of the write
+     * @throws IOException if unable to write or sync log
+     */
+    void remove(@NotNull final ByteBuffer key, final long timeStamp) throws IOException {
+        final ByteBuffer record = allocateRecord(1 + Integer.BYTES + key.remaining());
+        record.putLong(timeStamp).putInt(1);
+        putRemove(record, key);
+        write(record);
+    }
+
+    /**
+     * Appends all operations of the batch as a single record, so they are replayed all or none,
+     * and waits for it according to sync mode.
+     *
+     * @param batch operations to append
+     * @param timeStamp sequence number of all operations
+     * @throws IOException if unable to write or sync log
+     */
+    void write(@NotNull final WriteBatch batch, final long timeStamp) throws IOException {
+        int opsSize = 0;
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            opsSize += 1 + Integer.BYTES + operation.getKey().remaining();
+            final ByteBuffer value = operation.getValue();
+            if (value != null) {
+                opsSize += Integer.BYTES + value.remaining();
+            }
+        }
+
+        final ByteBuffer record = allocateRecord(opsSize);
+        record.putLong(timeStamp).putInt(batch.size());
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            final ByteBuffer value = operation.getValue();
+            if (value == null) {
+                putRemove(record, operation.getKey());
+            } else {
+                putUpsert(record, operation.getKey(), value);
+            }
+        }
+        write(record);
+    }
+
+    private static ByteBuffer allocateRecord(final int opsSize) {
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + Long.BYTES + Integer.BYTES + opsSize);
+        record.position(HEADER_SIZE);
+        return record;
+    }
+
+    private static void putUpsert(final ByteBuffer record, final ByteBuffer key, final ByteBuffer value) {
+        record.put(UPSERT)
+                .putInt(key.remaining())
+                .put(key.duplicate())
+                .putInt(value.remaining())
+                .put(value.duplicate());
+    }
+
+    private static void putRemove(final ByteBuffer record, final ByteBuffer key) {
+        record.put(REMOVE)
+                .putInt(key.remaining())
+                .put(key.duplicate());
+    }
+
+    private void write(final ByteBuffer record) throws IOException {
+        final int bodySize = record.position() - HEADER_SIZE;
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = record.duplicate();
+        body.flip().position(HEADER_SIZE);
+        crc.update(body);
+        record.putInt(0, bodySize).putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+
+        final Segment segment = current;
+        final long end = segment.append(record);
+        if (syncMode == SyncMode.ALWAYS) {
+            segment.sync(end);
+        }
+    }
+
+    private void syncCurrent() {
+        final Segment segment = current;
+        try {
+            segment.sync(segment.written);
+        } catch (IOException e) {
+            log.error("Unable to sync log segment " + segment.file, e);
+        }
+    }
+
+    /**
+     * Starts a new segment for the next memtable.
+     * Callers must make sure no appends run concurrently.
+     *
+     * @return previous segment, which must be retired when its memtable is flushed
+     * @throws IOException if unable to create new segment
+     */
+    Segment rotate() throws IOException {
+        final Segment previous = current;
+        current = new Segment(logDir, ++segmentCounter);
+        return previous;
+    }
+
+    /**
+     * Deletes segment whose memtable is already persisted in SSTable.
+     *
+     * @param segment segment returned by {@link #rotate()}
+     * @throws IOException if unable to delete segment
+     */
+    void retire(final Segment segment) throws IOException {
+        segment.channel.close();
+        Files.deleteIfExists(segment.file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+
+        final Segment segment = current;
+        if (segment.written == 0) {
+            retire(segment);
+        } else {
+            if (syncMode != SyncMode.NONE) {
+                segment.sync(segment.written);
+            }
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * Log file of a single memtable.
+     */
+    static final class Segment {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final Object appendLock = new Object();
+        private volatile long written;
+
+        private final Lock syncLock = new ReentrantLock();
+        private final Condition syncDone = syncLock.newCondition();
+        private long synced;
+        private boolean syncing;
+
+        private Segment(final Path logDir, final long id) throws IOException {
+            this.file = logDir.resolve(LOG_FILE_PREFIX + id + LOG_FILE_SUFFIX);
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        }
+
+        /**
+         * Appends record to the end of segment.
+         *
+         * @return segment length including the record
+         */
+        private long append(final ByteBuffer record) throws IOException {
+            synchronized (appendLock) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                written = channel.position();
+                return written;
+            }
+        }
+
+        /**
+         * Group commit: makes segment durable at least up to given position.
+         * Only one thread forces the channel at a time, the others wait for it
+         * and return at once if that force covered their records.
+         */
+        private void sync(final long position) throws IOException {
+            syncLock.lock();
+            try {
+                while (synced < position) {
+                    if (syncing) {
+                        awaitSync();
+                        continue;
+                    }
+
+                    syncing = true;
+                    final long target = written;
+                    syncLock.unlock();
+                    boolean forced = false;
+                    try {
+                        channel.force(false);
+                        forced = true;
+                    } finally {
+                        syncLock.lock();
+                        syncing = false;
+                        if (forced) {
+                            synced = Math.max(synced, target);
+                        }
+                        syncDone.signalAll();
+                    }
+                }
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private void awaitSync() throws InterruptedIOException {
+            try {
+                syncDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for log sync");
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.mail.polis.pdaniil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Back-pressure policy for writers.
+ *
+ * <p>Pressure is measured by count of SSTables and frozen memtables, bytes of frozen memtables
+ * waiting for flush and compaction debt. Between slowdown and stop thresholds each write is delayed
+ * proportionally to the pressure, at stop threshold writes wait until background
+ * flush or compaction brings it down.</p>
+ */
+public final class WriteController {
+
+    private final Config config;
+    private final long maxDelayNanos;
+
+    private final LongAdder delayedWrites = new LongAdder();
+    private final LongAdder delayedNanos = new LongAdder();
+    private final LongAdder stoppedWrites = new LongAdder();
+    private final LongAdder stoppedNanos = new LongAdder();
+
+    WriteController(final Config config) {
+        this.config = config;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getMaxWriteDelayMicros());
+    }
+
+    /**
+     * Checks whether writes must wait for background work.
+     *
+     * @param tables current tables
+     * @return true if any stop threshold is reached
+     */
+    boolean shouldStop(final TableSet tables) {
+        return tableCount(tables) >= config.getStopTableCount()
+                || tables.getPendingFlushBytes() >= config.getStopPendingFlushBytes()
+                || tables.getCompactionDebt() >= config.getStopCompactionDebt();
+    }
+
+    /**
+     * Computes delay of a write, growing linearly from zero at slowdown threshold
+     * to max delay at stop threshold of the most loaded metric.
+     *
+     * @param tables current tables
+     * @return delay in nanoseconds, 0 if writes are not slowed down
+     */
+    long delayNanos(final TableSet tables) {
+        final double pressure = Math.max(
+                pressure(tableCount(tables), config.getSlowdownTableCount(), config.getStopTableCount()),
+                Math.max(
+                        pressure(
+                                tables.getPendingFlushBytes(),
+                                config.getSlowdownPendingFlushBytes(),
+                                config.getStopPendingFlushBytes()),
+                        pressure(
+                                tables.getCompactionDebt(),
+                                config.getSlowdownCompactionDebt(),
+                                config.getStopCompactionDebt())));
+        return (long) (pressure * maxDelayNanos);
+    }
+
+    /**
+     * Counts SSTables together with memtables waiting for flush, which become SSTables even while writes wait.
+     */
+    private static int tableCount(final TableSet tables) {
+        return tables.getSSTables().size() + tables.getFlushing().size();
+    }
+
+    private static double pressure(final long value, final long slowdown, final long stop) {
+        if (value < slowdown) {
+            return 0;
+        }
+        if (value >= stop) {
+            return 1;
+        }
+        return (double) (value - slowdown + 1) / (stop - slowdown);
+    }
+
+    void recordDelay(final long nanos) {
+        delayedWrites.increment();
+        delayedNanos.add(nanos);
+    }
+
+    void recordStop(final long nanos) {
+        stoppedWrites.increment();
+        stoppedNanos.add(nanos);
+    }
+
+    Stats getStats() {
+        return new Stats(delayedWrites.sum(), delayedNanos.sum(), stoppedWrites.sum(), stoppedNanos.sum());
+    }
+
+    /**
+     * Counters of throttled writes.
+     */
+    public static final class Stats {
+        private final long delayedWrites;
+        private final long delayedNanos;
+        private final long stoppedWrites;
+        private final long stoppedNanos;
+
+        private Stats(
+                final long delayedWrites,
+                final long delayedNanos,
+                final long stoppedWrites,
+                final long stoppedNanos) {
+            this.delayedWrites = delayedWrites;
+            this.delayedNanos = delayedNanos;
+            this.stoppedWrites = stoppedWrites;
+            this.stoppedNanos = stoppedNanos;
+        }
+
+        /** Writes which were slowed down. */
+        public long getDelayedWrites() {
+            return delayedWrites;
+        }
+
+        /** Total time writes were slowed down. */
+        public long getDelayedNanos() {
+            return delayedNanos;
+        }
+
+        /** Writes which waited at a stop threshold. */
+        public long getStoppedWrites() {
+            return stoppedWrites;
+        }
+
+        /** Total time writes waited at stop thresholds. */
+        public long getStoppedNanos() {
+            return stoppedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "delayed " + delayedWrites + " writes for " + TimeUnit.NANOSECONDS.toMillis(delayedNanos)
+                    + " ms, stopped " + stoppedWrites + " writes for " + TimeUnit.NANOSECONDS.toMillis(stoppedNanos)
+                    + " ms";
+        }
+    }
+}
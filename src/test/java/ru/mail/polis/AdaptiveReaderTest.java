@@ -0,0 +1,149 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.BlockCache;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.SSTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the choice of SSTable readers per table.
+ * Tables read through {@link java.nio.channels.FileChannel} go through the block cache and mapped ones don't,
+ * so the cache tells which reader a table has.
+ */
+class AdaptiveReaderTest extends TestBase {
+
+    private static final long CHECK_PERIOD_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    void flushedTablesStartMapped(@TempDir File data) throws IOException {
+        // Rates are never checked, so tables keep their first readers
+        final Config config = adaptive().readerCheckPeriodMillis(TimeUnit.HOURS.toMillis(1)).build();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            // Keys still in the memtable are found without blocks too
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+
+            assertEquals(0, blockReads(dao, expected, keys));
+
+            dao.compact();
+            assertTrue(blockReads(dao, expected, keys) > 0);
+        }
+    }
+
+    @Test
+    void hotTablesAreMapped(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = adaptive().readerCheckPeriodMillis(CHECK_PERIOD_MILLIS).build();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            dao.compact();
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+
+            // The iterator keeps reading the table it started with
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            boolean mapped = false;
+            while (!mapped && System.currentTimeMillis() < deadline) {
+                mapped = blockReads(dao, expected, keys) == 0;
+            }
+            assertTrue(mapped, "Compacted table is read often, but it isn't mapped");
+
+            // Cold table goes back to positional reads
+            Thread.sleep(CHECK_PERIOD_MILLIS * 6);
+            assertTrue(blockReads(dao, expected, keys.subList(0, 10)) > 0);
+
+            assertSameRecords(expected, records);
+        }
+    }
+
+    @Test
+    void bigTablesAreNeverMapped(@TempDir File data) throws IOException {
+        final Config config = adaptive().readerCheckPeriodMillis(CHECK_PERIOD_MILLIS).mmapTableSize(1024).build();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+
+            final long deadline = System.currentTimeMillis() + CHECK_PERIOD_MILLIS * 10;
+            while (System.currentTimeMillis() < deadline) {
+                assertTrue(blockReads(dao, expected, keys.subList(0, 100)) > 0);
+            }
+        }
+    }
+
+    @Test
+    void reopened(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, adaptive().build())) {
+            expected = fill(dao);
+        }
+        final Config config = adaptive().readerCheckPeriodMillis(CHECK_PERIOD_MILLIS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 5; i++) {
+                assertSameRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+                dao.compact();
+            }
+        }
+    }
+
+    private static Config.Builder adaptive() {
+        return Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .sstableImplementation(SSTable.Implementation.ADAPTIVE)
+                .hotTableReadRate(1_000);
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomBuffer(100);
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    /**
+     * Looks the keys up and counts blocks taken from the block cache or read into it meanwhile.
+     */
+    private static long blockReads(
+            final MyDAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final List<ByteBuffer> keys) throws IOException {
+        final BlockCache cache = dao.getBlockCache();
+        final long before = cache.getHits() + cache.getMisses();
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer key = keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+            assertEquals(expected.get(key), dao.get(key));
+        }
+        return cache.getHits() + cache.getMisses() - before;
+    }
+
+    private static void assertSameRecords(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
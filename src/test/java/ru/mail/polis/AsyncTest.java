@@ -0,0 +1,170 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for lookups and range reads which don't wait for disk on the calling thread.
+ */
+class AsyncTest extends TestBase {
+
+    @Test
+    void blocks(@TempDir File data) throws Exception {
+        final Config config = config(TableFormat.BLOCKS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            readsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void cellOffsets(@TempDir File data) throws Exception {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            readsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void withoutBlockCache(@TempDir File data) throws Exception {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).blockCacheSize(0).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            readsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void withRowCache(@TempDir File data) throws Exception {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).rowCacheSize(1024 * 1024).build();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            readsWhatWasWritten(dao);
+            assertTrue(dao.getRowCache().getHits() > 0);
+        }
+    }
+
+    @Test
+    void shards(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data, 4)) {
+            readsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void tablesOutliveLookupsInFlight(@TempDir File data) throws Exception {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+
+            final List<CompletableFuture<ByteBuffer>> lookups = new ArrayList<>();
+            for (final ByteBuffer key : expected.keySet()) {
+                lookups.add(dao.getAsync(key));
+            }
+            // Compaction retires the tables the lookups read
+            dao.compact();
+
+            int i = 0;
+            for (final ByteBuffer value : expected.values()) {
+                assertEquals(value, lookups.get(i++).get());
+            }
+        }
+    }
+
+    @Test
+    void snapshotOutlivesCompaction(@TempDir File data) throws Exception {
+        // Every lookup reads the table file
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).blockCacheSize(0).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    dao.upsert(key, randomBuffer(100));
+                }
+                // Compaction deletes the tables of the snapshot and writes its result over the newest one
+                dao.compact();
+
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.getAsync(entry.getKey()).get());
+                }
+            }
+        }
+    }
+
+    private static void readsWhatWasWritten(final DAO dao) throws Exception {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+
+        // Hundreds of lookups in flight at once
+        final List<CompletableFuture<ByteBuffer>> lookups = new ArrayList<>();
+        for (final ByteBuffer key : expected.keySet()) {
+            lookups.add(dao.getAsync(key));
+        }
+        int i = 0;
+        for (final ByteBuffer value : expected.values()) {
+            assertEquals(value, lookups.get(i++).get());
+        }
+        // Once more, cached blocks and rows complete in place
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.getAsync(entry.getKey()).get());
+        }
+
+        final ExecutionException missing = assertThrows(
+                ExecutionException.class,
+                () -> dao.getAsync(randomKey()).get());
+        assertTrue(missing.getCause() instanceof NoSuchElementException);
+
+        final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+        for (int j = 0; j < 10; j++) {
+            final ByteBuffer from = keys.get(j * keys.size() / 20);
+            final ByteBuffer to = keys.get(keys.size() / 2 + j * keys.size() / 20);
+            assertSameRecords(expected.subMap(from, to), dao.rangeAsync(from, to).get());
+        }
+        assertSameRecords(expected, dao.rangeAsync(ByteBuffer.allocate(0), null).get());
+        assertTrue(dao.rangeAsync(keys.get(1), keys.get(0)).get().isEmpty());
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomBuffer(100));
+            // Removals and overwrites land in later tables
+            if (i % 4 == 0) {
+                dao.remove(key);
+            } else if (i % 4 == 1) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            } else {
+                expected.put(key, dao.get(key));
+            }
+        }
+        return expected;
+    }
+
+    private static void assertSameRecords(final Map<ByteBuffer, ByteBuffer> expected, final List<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        int i = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.get(i++);
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+    }
+}
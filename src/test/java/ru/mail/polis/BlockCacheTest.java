@@ -0,0 +1,116 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.BlockCache;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for cache of SSTable blocks.
+ */
+class BlockCacheTest extends TestBase {
+
+    private static final int RECORDS = 1_000;
+    private static final long CACHE_SIZE = 64 * 1024;
+
+    @Test
+    void repeatedReadsHit(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = fill(data);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            final ByteBuffer key = keys.get(0);
+            final ByteBuffer value = dao.get(key);
+            final BlockCache cache = dao.getBlockCache();
+            final long misses = cache.getMisses();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(value, dao.get(key));
+            }
+
+            assertEquals(misses, cache.getMisses());
+            assertTrue(cache.getHits() >= 100);
+        }
+    }
+
+    @Test
+    void sizeIsBounded(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = fill(data);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, cacheConfig())) {
+            for (final ByteBuffer key : keys) {
+                dao.get(key);
+            }
+
+            final BlockCache cache = dao.getBlockCache();
+            assertTrue(cache.getEvictions() > 0);
+            assertTrue(cache.getSize() <= CACHE_SIZE);
+        }
+    }
+
+    @Test
+    void scanKeepsHotBlocks(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = fill(data);
+        final List<ByteBuffer> hotKeys = keys.subList(0, 4);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, cacheConfig())) {
+            for (int i = 0; i < 2; i++) {
+                for (final ByteBuffer key : hotKeys) {
+                    dao.get(key);
+                }
+            }
+
+            // Scans read ahead past the cache, one-off lookups go through probation
+            assertEquals(RECORDS, count(dao.iterator(ByteBuffer.allocate(0))));
+            for (int i = 0; i < keys.size(); i++) {
+                dao.get(keys.get(i));
+                if (i % 100 == 0) {
+                    for (final ByteBuffer key : hotKeys) {
+                        dao.get(key);
+                    }
+                }
+            }
+
+            final BlockCache cache = dao.getBlockCache();
+            final long misses = cache.getMisses();
+            for (final ByteBuffer key : hotKeys) {
+                dao.get(key);
+            }
+            assertEquals(misses, cache.getMisses());
+        }
+    }
+
+    private static Config cacheConfig() {
+        return Config.builder().blockCacheSize(CACHE_SIZE).build();
+    }
+
+    private static List<ByteBuffer> fill(final File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static int count(final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            records.next();
+            count++;
+        }
+        return count;
+    }
+}
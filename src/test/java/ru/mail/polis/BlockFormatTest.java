@@ -0,0 +1,113 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for SSTables with cells grouped into blocks.
+ */
+class BlockFormatTest extends TestBase {
+
+    @Test
+    void tinyBlocks(@TempDir File data) throws IOException {
+        // Most cells are bigger than a block
+        readsWhatWasWritten(data, 64);
+    }
+
+    @Test
+    void defaultBlocks(@TempDir File data) throws IOException {
+        readsWhatWasWritten(data, Config.DEFAULT.getBlockSize());
+    }
+
+    @Test
+    void mixedFormats(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        fill(data, config(TableFormat.CELL_OFFSETS).build(), expected);
+        fill(data, config(TableFormat.BLOCKS).build(), expected);
+
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            assertContents(dao, expected);
+            dao.compact();
+            assertContents(dao, expected);
+        }
+    }
+
+    private static void readsWhatWasWritten(final File data, final int blockSize) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        fill(data, Config.builder().memTableSize(MEM_TABLE_SIZE).blockSize(blockSize).build(), expected);
+
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            assertContents(dao, expected);
+        }
+    }
+
+    private static void fill(
+            final File data,
+            final Config config,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            for (final ByteBuffer key : expected.keySet().toArray(new ByteBuffer[0])) {
+                if (key.hashCode() % 5 == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                }
+            }
+        }
+    }
+
+    private static void assertContents(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        assertSameRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            if (!expected.containsKey(key)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            // Seek to existing and absent keys
+            final ByteBuffer from = i % 2 == 0 ? key : expected.floorKey(key);
+            if (from != null) {
+                assertSameRecords(expected.tailMap(from, true), dao.iterator(from));
+            }
+        }
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.FilterStats;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Point lookups with Bloom filters of SSTables.
+ */
+class BloomFilterTest extends TestBase {
+
+    @Test
+    void absentKeysSkipTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data, Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .build());
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            for (int i = 0; i < 1_000; i++) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            }
+
+            final FilterStats stats = dao.getFilterStats();
+            assertTrue(stats.getNegatives() > 0);
+            // 10 bits per key give about 1% of false positives
+            assertTrue(stats.getFalsePositives() < stats.getChecks() / 20);
+        }
+    }
+
+    @Test
+    void tablesWithoutFilter(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data, Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .bloomBitsPerKey(0)
+                .blockSize(0)
+                .build());
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            assertEquals(0, dao.getFilterStats().getChecks());
+
+            // Compacted table gets a filter
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+            assertEquals(1, dao.getFilterStats().getChecks());
+        }
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File data, final Config config) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 500; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final ByteBuffer removed = randomKey();
+            dao.upsert(removed, randomValue());
+            dao.remove(removed);
+        }
+        return expected;
+    }
+}
@@ -204,4 +204,45 @@ class CompactionTest extends TestBase {
             }
         }
     }
+
+    @Test
+    void removalsOutliveCrash(@TempDir File data) throws IOException {
+        final int keyCount = 100;
+        final Collection<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, randomValue());
+            }
+        }
+        final Map<File, byte[]> written = new HashMap<>();
+        for (final File file : data.listFiles()) {
+            written.put(file, java.nio.file.Files.readAllBytes(file.toPath()));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+        }
+
+        // Crash before the compacted tables were deleted
+        for (final Map.Entry<File, byte[]> file : written.entrySet()) {
+            if (!file.getKey().exists()) {
+                java.nio.file.Files.write(file.getKey().toPath(), file.getValue());
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent writers for {@link DAO} implementations.
+ */
+class ConcurrentWriteTest extends TestBase {
+
+    private static final int SMALL_VALUE_LENGTH = 64;
+
+    @Test
+    void concurrentUpserts(@TempDir File data) throws Exception {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final int keysPerThread = 5_000;
+
+        try (DAO dao = DAOFactory.create(data)) {
+            runWriters(dao, threads, keysPerThread);
+
+            // Every key must be present exactly once and in order
+            final Iterator<Record> iter = dao.iterator(ByteBuffer.allocate(0));
+            ByteBuffer prev = null;
+            int count = 0;
+            while (iter.hasNext()) {
+                final Record record = iter.next();
+                if (prev != null) {
+                    assertTrue(prev.compareTo(record.getKey()) < 0);
+                }
+                prev = record.getKey();
+                assertEquals(record.getKey(), record.getValue());
+                count++;
+            }
+            assertEquals(threads * keysPerThread, count);
+        }
+    }
+
+    @Test
+    void concurrentUpsertsAndRemoves(@TempDir File data) throws Exception {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final int keysPerThread = 5_000;
+
+        try (DAO dao = DAOFactory.create(data)) {
+            runWriters(dao, threads, keysPerThread);
+
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        dao.remove(key(thread, i));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    private static void runWriters(
+            final DAO dao,
+            final int threads,
+            final int keysPerThread) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < keysPerThread; i++) {
+                    final ByteBuffer key = key(thread, i);
+                    dao.upsert(key, key);
+                }
+                return null;
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private static ByteBuffer key(final int thread, final int index) {
+        return ByteBuffer.allocate(Integer.BYTES * 2 + SMALL_VALUE_LENGTH)
+                .putInt(thread)
+                .putInt(index)
+                .rewind();
+    }
+}
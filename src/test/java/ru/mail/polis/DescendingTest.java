@@ -0,0 +1,112 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MutableTable;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for iteration in descending order of keys.
+ */
+class DescendingTest extends TestBase {
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            walksBackwards(dao);
+        }
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.BLOCKS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            walksBackwards(dao);
+        }
+    }
+
+    @Test
+    void offHeap(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .memTableImplementation(MutableTable.Implementation.OFF_HEAP)
+                .build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            walksBackwards(dao);
+        }
+    }
+
+    @Test
+    void shards(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, 4)) {
+            walksBackwards(dao);
+        }
+    }
+
+    private static void walksBackwards(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomValue());
+            // Overwrites and removals land in later tables than the first writes
+            if (i % 3 == 0) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            } else if (i % 3 == 1) {
+                dao.remove(key);
+            } else {
+                expected.put(key, dao.get(key));
+            }
+        }
+
+        assertSameRecords(expected.descendingMap(), dao.descendingRange(null, null));
+        for (int i = 0; i < 10; i++) {
+            final ByteBuffer from = randomKey();
+            assertSameRecords(expected.headMap(from, true).descendingMap(), dao.descendingIterator(from));
+
+            final ByteBuffer to = randomKey();
+            if (from.compareTo(to) >= 0) {
+                assertSameRecords(
+                        expected.subMap(to, false, from, true).descendingMap(),
+                        dao.descendingRange(from, to));
+            } else {
+                assertFalse(dao.descendingRange(from, to).hasNext());
+            }
+        }
+
+        // Inclusive start at an existing key
+        final ByteBuffer existing = expected.firstKey();
+        final Iterator<Record> single = dao.descendingIterator(existing);
+        assertTrue(single.hasNext());
+        assertEquals(existing, single.next().getKey());
+        assertFalse(single.hasNext());
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for seeks by packed prefixes of keys, with keys whose prefixes are equal or padded.
+ */
+class KeyPrefixTest extends TestBase {
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            seeksWhatWasWritten(dao, ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.BLOCKS).blockSize(256).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            seeksWhatWasWritten(dao, ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    @Test
+    void littleEndianCellOffsets(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            seeksWhatWasWritten(dao, ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    @Test
+    void littleEndianBlocks(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.BLOCKS).blockSize(256).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            seeksWhatWasWritten(dao, ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    @Test
+    void reopened(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            expected = fill(dao, ByteOrder.BIG_ENDIAN);
+        }
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            assertSeeks(dao, expected, ByteOrder.BIG_ENDIAN);
+            dao.compact();
+            assertSeeks(dao, expected, ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    private static void seeksWhatWasWritten(final DAO dao, final ByteOrder order) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, order);
+        assertSeeks(dao, expected, order);
+        dao.compact();
+        assertSeeks(dao, expected, order);
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final DAO dao, final ByteOrder order) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = keyWithCommonPrefix(order);
+            final ByteBuffer value = randomBuffer(100);
+            dao.upsert(key, value);
+            expected.put(key, value);
+            if (i % 5 == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            }
+        }
+        return expected;
+    }
+
+    private static void assertSeeks(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final ByteOrder order) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 200; i++) {
+            // Both written and absent keys, sharing prefixes with neighbours
+            final ByteBuffer from = i % 2 == 0 ? keys.get(i * keys.size() / 200) : keyWithCommonPrefix(order);
+            final Iterator<Record> records = dao.iterator(from);
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries = expected.tailMap(from).entrySet().iterator();
+            for (int j = 0; j < 10 && entries.hasNext(); j++) {
+                final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            if (!entries.hasNext()) {
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    /**
+     * Keys of 1 to 12 bytes, most of them longer keys starting with the same 8 bytes,
+     * so packed prefixes are both padded and equal. Byte order of the buffers must not matter.
+     */
+    private static ByteBuffer keyWithCommonPrefix(final ByteOrder order) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final byte[] key = new byte[1 + random.nextInt(12)];
+        random.nextBytes(key);
+        if (key.length > 8 && random.nextBoolean()) {
+            for (int i = 0; i < 8; i++) {
+                key[i] = (byte) (i % 2 == 0 ? -1 : 1);
+            }
+        }
+        return ByteBuffer.wrap(key).order(order);
+    }
+}
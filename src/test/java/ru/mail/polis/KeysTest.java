@@ -0,0 +1,112 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for listing keys without values.
+ */
+class KeysTest extends TestBase {
+
+    /* Bigger than read-ahead window of scans */
+    private static final int BIG_VALUE_LENGTH = 100 * 1024;
+    /* Holds a few big values */
+    private static final long BIG_MEM_TABLE_SIZE = 512 * 1024;
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        final Config config = TableFormat.CELL_OFFSETS.config().memTableSize(BIG_MEM_TABLE_SIZE).build();
+        listsWhatWasWritten(data, () -> new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config));
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        final Config config = TableFormat.BLOCKS.config().memTableSize(BIG_MEM_TABLE_SIZE).build();
+        listsWhatWasWritten(data, () -> new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config));
+    }
+
+    @Test
+    void shards(@TempDir File data) throws IOException {
+        listsWhatWasWritten(data, () -> DAOFactory.create(data, 4));
+    }
+
+    @Test
+    void emptyRange(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(randomKey(), randomValue());
+            final ByteBuffer key = randomKey();
+            assertFalse(dao.keys(key, key).hasNext());
+        }
+    }
+
+    private static void listsWhatWasWritten(final File data, final Opener opener) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = opener.open()) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = i % 50 == 0
+                        ? randomBuffer(BIG_VALUE_LENGTH)
+                        : randomBuffer(1 + ThreadLocalRandom.current().nextInt(100));
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            // Removed keys must not be listed, removed big values are never read
+            final Iterator<ByteBuffer> removed = expected.keySet().iterator();
+            for (int i = 0; removed.hasNext(); i++) {
+                final ByteBuffer key = removed.next();
+                if (i % 7 == 0) {
+                    dao.remove(key);
+                    removed.remove();
+                }
+            }
+        }
+
+        try (DAO dao = opener.open()) {
+            assertSameKeys(expected.keySet(), dao.keys(ByteBuffer.allocate(0), null));
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer from = randomKey();
+                final ByteBuffer to = randomKey();
+                if (from.compareTo(to) <= 0) {
+                    assertSameKeys(expected.subMap(from, to).keySet(), dao.keys(from, to));
+                } else {
+                    assertSameKeys(expected.tailMap(from, true).keySet(), dao.keys(from, null));
+                }
+            }
+
+            // Values of listed keys are still readable
+            for (final ByteBuffer key : expected.keySet()) {
+                assertEquals(expected.get(key), dao.get(key));
+            }
+        }
+    }
+
+    private static void assertSameKeys(final Collection<ByteBuffer> expected, final Iterator<ByteBuffer> actual) {
+        for (final ByteBuffer key : expected) {
+            assertTrue(actual.hasNext());
+            assertEquals(key, actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    @FunctionalInterface
+    private interface Opener {
+
+        DAO open() throws IOException;
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for merging records of many tables.
+ */
+class MergeTest extends TestBase {
+
+    private static final long MEM_TABLE_SIZE = 16 * 1024;
+
+    @Test
+    void shortAndSignedKeys(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).build();
+
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                // Few distinct keys, so they are overwritten and removed in different tables
+                final ByteBuffer key = shortKey();
+                if (i % 7 == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomBuffer(1 + ThreadLocalRandom.current().nextInt(64));
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            assertSameRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+            final ByteBuffer from = shortKey();
+            assertSameRecords(expected.tailMap(from, true), dao.iterator(from));
+        }
+    }
+
+    /**
+     * Generates keys shorter and longer than 8 bytes made of bytes around sign change.
+     */
+    private static ByteBuffer shortKey() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final byte[] bytes = new byte[random.nextInt(12)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (Byte.MAX_VALUE - 1 + random.nextInt(4));
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
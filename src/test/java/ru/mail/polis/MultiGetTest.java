@@ -0,0 +1,141 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.BlockCache;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MutableTable;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for lookups of many keys at once.
+ */
+class MultiGetTest extends TestBase {
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.BLOCKS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            findsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            findsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void offHeap(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .memTableImplementation(MutableTable.Implementation.OFF_HEAP)
+                .build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            findsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void withRowCache(@TempDir File data) throws IOException {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).rowCacheSize(1024 * 1024).build();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            findsWhatWasWritten(dao);
+            assertTrue(dao.getRowCache().getHits() > 0);
+        }
+    }
+
+    @Test
+    void shards(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, 4)) {
+            findsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void blocksAreReadOnce(@TempDir File data) throws IOException {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 3_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(100));
+                keys.add(key);
+            }
+            dao.compact();
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final BlockCache cache = dao.getBlockCache();
+            final long readsBefore = cache.getHits() + cache.getMisses();
+
+            final List<ByteBuffer> values = dao.multiGet(keys);
+            for (final ByteBuffer value : values) {
+                assertEquals(100, value.remaining());
+            }
+
+            // About 30 cells fit into a block, and every block is read for all its keys at once
+            final long reads = cache.getHits() + cache.getMisses() - readsBefore;
+            assertTrue(reads * 10 < keys.size(), "Blocks read: " + reads);
+        }
+    }
+
+    private static void findsWhatWasWritten(final DAO dao) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomBuffer(100));
+            keys.add(key);
+            // Removals and overwrites land in later tables
+            if (i % 4 == 0) {
+                dao.remove(key);
+            } else if (i % 4 == 1) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            } else {
+                expected.put(key, dao.get(key));
+            }
+        }
+
+        // Unordered, repeated and absent keys
+        for (int i = 0; i < 500; i++) {
+            keys.add(randomKey());
+            keys.add(keys.get(i * 3));
+        }
+        Collections.shuffle(keys);
+
+        final List<ByteBuffer> values = dao.multiGet(keys);
+        assertEquals(keys.size(), values.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = expected.get(keys.get(i));
+            if (value == null) {
+                assertNull(values.get(i));
+            } else {
+                assertEquals(value, values.get(i));
+            }
+        }
+
+        // Once more, after some keys were cached
+        assertEquals(values, dao.multiGet(keys));
+        assertTrue(dao.multiGet(Collections.emptyList()).isEmpty());
+    }
+}
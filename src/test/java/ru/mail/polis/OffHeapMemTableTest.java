@@ -0,0 +1,142 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MutableTable;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link DAO} with memtables in direct memory.
+ */
+class OffHeapMemTableTest extends TestBase {
+
+    // The current memtable and the frozen one fit into direct memory of the default -Xmx128m
+    private static final long MEM_TABLE_SIZE = 32 * 1024 * 1024;
+
+    @Test
+    void overwriteAndRemove(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = open(data)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(key, value);
+            dao.upsert(removed, randomValue());
+            dao.remove(removed);
+
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = open(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void emptyValue(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = ByteBuffer.allocate(0);
+
+        try (DAO dao = open(data)) {
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void bigConcurrentMemTable(@TempDir File data) throws Exception {
+        final int threads = 4;
+        final int keysPerThread = 50_000;
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new ConcurrentSkipListMap<>();
+
+        try (DAO dao = open(data)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            // Everything still fits into the single memtable
+            for (final File file : data.listFiles()) {
+                assertFalse(file.getName().endsWith(".dat"));
+            }
+
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+
+        try (DAO dao = open(data)) {
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void directMemoryIsChecked(@TempDir File data) {
+        final Config config = Config.builder()
+                .memTableImplementation(MutableTable.Implementation.OFF_HEAP)
+                .memTableSize(Runtime.getRuntime().maxMemory())
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config));
+        // On-heap memtables don't take direct memory
+        final Config onHeap = Config.builder().memTableSize(Runtime.getRuntime().maxMemory()).build();
+        assertDoesNotThrow(() -> new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, onHeap).close());
+    }
+
+    private static void assertSameContents(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static DAO open(final File data) throws IOException {
+        return new MyDAO(
+                data.toPath(),
+                DAOFactory.MAX_HEAP,
+                Config.builder()
+                        .memTableImplementation(MutableTable.Implementation.OFF_HEAP)
+                        .memTableSize(MEM_TABLE_SIZE)
+                        .maxPendingFlushes(1)
+                        .build());
+    }
+}
@@ -0,0 +1,133 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Tests for range streams split into parts.
+ */
+class ParallelScanTest extends TestBase {
+
+    @Test
+    void blocks(@TempDir File data) throws Exception {
+        final Config config = config(TableFormat.BLOCKS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            streamsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void cellOffsets(@TempDir File data) throws Exception {
+        final Config config = config(TableFormat.CELL_OFFSETS).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            streamsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void shards(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data, 4)) {
+            streamsWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void rangeIsSplitAtSampledKeys(@TempDir File data) throws IOException {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+
+            try (Stream<Record> stream = dao.rangeStream(ByteBuffer.allocate(0), null)) {
+                final Spliterator<Record> upper = stream.spliterator();
+                final Spliterator<Record> lower = upper.trySplit();
+                assertNotNull(lower);
+
+                // Parts are adjacent and keep the order
+                final List<Record> records = new ArrayList<>();
+                lower.forEachRemaining(records::add);
+                upper.forEachRemaining(records::add);
+                assertSameRecords(expected, records);
+            }
+        }
+    }
+
+    private static void streamsWhatWasWritten(final DAO dao) throws Exception {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+
+        // A pool of its own, so the range is read by several threads even on a small machine
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertSameRecords(expected, pool.submit(() -> collect(dao, ByteBuffer.allocate(0), null)).get());
+
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer from = keys.get(i * keys.size() / 20);
+                final ByteBuffer to = keys.get(keys.size() / 2 + i * keys.size() / 20);
+                assertSameRecords(expected.subMap(from, to), pool.submit(() -> collect(dao, from, to)).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Sequential streams are read as a whole
+        try (Stream<Record> stream = dao.rangeStream(ByteBuffer.allocate(0), null)) {
+            assertEquals(expected.size(), stream.count());
+        }
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomBuffer(100));
+            // Removals and overwrites land in later tables
+            if (i % 4 == 0) {
+                dao.remove(key);
+            } else if (i % 4 == 1) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            } else {
+                expected.put(key, dao.get(key));
+            }
+        }
+        return expected;
+    }
+
+    private static List<Record> collect(final DAO dao, final ByteBuffer from, final ByteBuffer to) {
+        try (Stream<Record> stream = dao.rangeStream(from, to)) {
+            return stream.parallel().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void assertSameRecords(final Map<ByteBuffer, ByteBuffer> expected, final List<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        int i = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.get(i++);
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MutableTable;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link DAO#get(ByteBuffer)} over keys overwritten in many tables.
+ */
+class PointLookupTest extends TestBase {
+
+    private static final long MEM_TABLE_SIZE = 16 * 1024;
+    private static final int KEYS = 50;
+    private static final int ROUNDS = 8;
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        newestVersionWins(data, MutableTable.Implementation.ON_HEAP);
+    }
+
+    @Test
+    void newestVersionWinsOffHeap(@TempDir File data) throws IOException {
+        newestVersionWins(data, MutableTable.Implementation.OFF_HEAP);
+    }
+
+    private static void newestVersionWins(
+            final File data,
+            final MutableTable.Implementation implementation) throws IOException {
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .memTableImplementation(implementation)
+                .build();
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = randomKey();
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    // Every key is removed in some rounds and revived in the next ones
+                    if ((i + round) % 3 == 0) {
+                        dao.remove(keys[i]);
+                        expected.remove(keys[i]);
+                    } else {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(keys[i], value);
+                        expected.put(keys[i], value);
+                    }
+                }
+                // Push the round to disk
+                for (int i = 0; i < 200; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+                assertLatest(dao, keys, expected);
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            assertLatest(dao, keys, expected);
+
+            // Memtable answers without looking at SSTables
+            final ByteBuffer value = randomValue();
+            final long checks = dao.getFilterStats().getChecks();
+            dao.upsert(keys[0], value);
+            assertEquals(value, dao.get(keys[0]));
+            assertEquals(checks, dao.getFilterStats().getChecks());
+
+            dao.compact();
+            expected.put(keys[0], value);
+            assertLatest(dao, keys, expected);
+        }
+    }
+
+    private static void assertLatest(
+            final DAO dao,
+            final ByteBuffer[] keys,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final ByteBuffer key : keys) {
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+    }
+}
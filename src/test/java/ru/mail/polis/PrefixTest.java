@@ -0,0 +1,163 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.BlockCache;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for scans of keys with common prefix.
+ */
+class PrefixTest extends TestBase {
+
+    private static final int TENANTS = 20;
+
+    @Test
+    void prefixEnd() {
+        assertEquals(bytes(1, 3), DAO.prefixEnd(bytes(1, 2)));
+        // Signed order: the greatest byte is carried to the previous one
+        assertEquals(bytes(2), DAO.prefixEnd(bytes(1, Byte.MAX_VALUE)));
+        assertEquals(bytes(0), DAO.prefixEnd(bytes(-1)));
+        assertNull(DAO.prefixEnd(bytes(Byte.MAX_VALUE, Byte.MAX_VALUE)));
+        assertNull(DAO.prefixEnd(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void scansPrefixes(@TempDir File data) throws IOException {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).prefixFilterLength(2).build();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            scansWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void scansPrefixesOfShards(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, 4)) {
+            scansWhatWasWritten(dao);
+        }
+    }
+
+    @Test
+    void tablesWithoutPrefixAreSkipped(@TempDir File data) throws IOException {
+        // Many tables are kept, compaction would make one of them
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .compactionTrigger(100)
+                .tableCountThresholds(100, 200)
+                .prefixFilterLength(4)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int tenant = 0; tenant < TENANTS; tenant++) {
+            try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+                // Every table spans the whole key space, so key ranges don't rule tables out
+                dao.upsert(key("0000"), randomValue());
+                dao.upsert(key("zzzz"), randomValue());
+                for (int entity = 0; entity < 10; entity++) {
+                    final ByteBuffer key = key(String.format("t%03d:%d", tenant, entity));
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            final BlockCache cache = dao.getBlockCache();
+            final long readsBefore = cache.getHits() + cache.getMisses();
+
+            final ByteBuffer prefix = key("t005");
+            assertSameRecords(expected.subMap(prefix, DAO.prefixEnd(prefix)), dao.prefix(prefix));
+
+            // Tables of other tenants are not opened, apart from rare false positives
+            final long reads = cache.getHits() + cache.getMisses() - readsBefore;
+            assertTrue(reads <= 4, "Blocks read: " + reads);
+        }
+    }
+
+    private static void scansWhatWasWritten(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 3_000; i++) {
+            // Bytes around sign change test carrying of prefix end
+            final ByteBuffer key = bytes(
+                    Byte.MAX_VALUE - 1 + random.nextInt(3),
+                    Byte.MAX_VALUE - 1 + random.nextInt(3),
+                    random.nextInt(256),
+                    random.nextInt(256));
+            if (i % 10 == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        for (int first = Byte.MAX_VALUE - 1; first <= Byte.MAX_VALUE + 1; first++) {
+            final ByteBuffer shortPrefix = bytes(first);
+            assertSameRecords(withPrefix(expected, shortPrefix), dao.prefix(shortPrefix));
+            for (int second = Byte.MAX_VALUE - 1; second <= Byte.MAX_VALUE + 1; second++) {
+                final ByteBuffer prefix = bytes(first, second);
+                assertSameRecords(withPrefix(expected, prefix), dao.prefix(prefix));
+            }
+        }
+        final ByteBuffer longPrefix = expected.firstKey().duplicate().limit(3);
+        assertSameRecords(withPrefix(expected, longPrefix), dao.prefix(longPrefix));
+        assertSameRecords(expected, dao.prefix(ByteBuffer.allocate(0)));
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> withPrefix(
+            final NavigableMap<ByteBuffer, ByteBuffer> records,
+            final ByteBuffer prefix) {
+        final Map<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+            final ByteBuffer key = entry.getKey();
+            if (key.remaining() >= prefix.remaining()
+                    && key.duplicate().limit(prefix.remaining()).equals(prefix)) {
+                result.put(key, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer bytes(final int... bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (final int b : bytes) {
+            buffer.put((byte) b);
+        }
+        return buffer.flip();
+    }
+
+    private static ByteBuffer key(final String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
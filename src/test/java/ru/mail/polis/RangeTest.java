@@ -0,0 +1,118 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.BlockCache;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for range scans bounded inside tables.
+ */
+class RangeTest extends TestBase {
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        rangesOfOverlappingTables(data, config(TableFormat.CELL_OFFSETS).build());
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        rangesOfOverlappingTables(data, config(TableFormat.BLOCKS).build());
+    }
+
+    @Test
+    void tablesOutOfRangeAreSkipped(@TempDir File data) throws IOException {
+        // Many tables are kept, compaction would make one of them
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .compactionTrigger(100)
+                .tableCountThresholds(100, 200)
+                .build();
+        final int count = 2_000;
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            // Ascending keys, so every table holds its own part of the key space
+            for (int i = 0; i < count; i++) {
+                dao.upsert(key(i), randomValue());
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            assertTrue(data.list().length > 10);
+            final BlockCache cache = dao.getBlockCache();
+            final long readsBefore = cache.getHits() + cache.getMisses();
+
+            final Iterator<Record> range = dao.range(key(count / 2), key(count / 2 + 3));
+            for (int i = count / 2; i < count / 2 + 3; i++) {
+                assertTrue(range.hasNext());
+                assertEquals(key(i), range.next().getKey());
+            }
+            assertFalse(range.hasNext());
+
+            // Start and end of the range in at most two tables
+            final long reads = cache.getHits() + cache.getMisses() - readsBefore;
+            assertTrue(reads <= 4, "Blocks read: " + reads);
+        }
+    }
+
+    private static void rangesOfOverlappingTables(final File data, final Config config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                // Few distinct keys, so tables overlap
+                final ByteBuffer key = key(i * 7919 % 2_000);
+                if (i % 5 == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomBuffer(i % 100);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            for (int i = 0; i < 20; i++) {
+                final int from = i * 97;
+                final int to = from + i * 13;
+                assertSameRecords(expected.subMap(key(from), key(to)), dao.range(key(from), key(to)));
+            }
+            assertSameRecords(expected.tailMap(key(1_500), true), dao.range(key(1_500), null));
+            // Bounds out of the key space
+            assertSameRecords(expected, dao.range(ByteBuffer.allocate(0), key(3_000)));
+            assertFalse(dao.range(key(3_000), key(4_000)).hasNext());
+        }
+    }
+
+    /**
+     * Makes keys which sort like numbers.
+     */
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,198 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.RowCache;
+import ru.mail.polis.pdaniil.ShardedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for cache of point lookup results.
+ */
+class RowCacheTest extends TestBase {
+
+    private static final long ROW_CACHE_SIZE = 1024 * 1024;
+
+    private static Config config(final long rowCacheSize) {
+        return Config.builder().memTableSize(MEM_TABLE_SIZE).rowCacheSize(rowCacheSize).build();
+    }
+
+    @Test
+    void repeatedLookupsHit(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config(ROW_CACHE_SIZE))) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(value, dao.get(key));
+            }
+            final RowCache cache = dao.getRowCache();
+            assertEquals(1, cache.getMisses());
+            assertEquals(9, cache.getHits());
+            assertEquals(0.9, cache.getHitRate(), 1e-9);
+        }
+    }
+
+    @Test
+    void absentKeysAreCached(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config(ROW_CACHE_SIZE))) {
+            final ByteBuffer key = randomKey();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertEquals(1, dao.getRowCache().getHits());
+
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void writesInvalidate(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config(ROW_CACHE_SIZE))) {
+            final ByteBuffer key = randomKey();
+            dao.upsert(key, randomValue());
+            dao.get(key);
+
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+
+            final ByteBuffer batchValue = randomValue();
+            dao.write(new WriteBatch().upsert(key, batchValue));
+            assertEquals(batchValue, dao.get(key));
+        }
+    }
+
+    @Test
+    void cachedRowsSurviveCompaction(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config(ROW_CACHE_SIZE))) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            final List<ByteBuffer> values = new ArrayList<>();
+            // Enough to flush several tables, few enough to fit into the cache
+            for (int i = 0; i < 500; i++) {
+                keys.add(randomKey());
+                values.add(randomValue());
+                dao.upsert(keys.get(i), values.get(i));
+            }
+            for (final ByteBuffer key : keys) {
+                dao.get(key);
+            }
+
+            // Cached values are copies, so closed tables don't corrupt them
+            dao.compact();
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+            assertTrue(dao.getRowCache().getHits() >= keys.size());
+        }
+    }
+
+    @Test
+    void sizeIsBounded(@TempDir File data) throws IOException {
+        final long capacity = 16 * 1024;
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config(capacity))) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                assertEquals(value, dao.get(key));
+            }
+            final RowCache cache = dao.getRowCache();
+            assertTrue(cache.getSize() <= capacity, cache.toString());
+            assertTrue(cache.getEvictions() > 0);
+        }
+    }
+
+    @Test
+    void disabledByDefault(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP)) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(key));
+            assertEquals(0, dao.getRowCache().getHits() + dao.getRowCache().getMisses());
+        }
+    }
+
+    @Test
+    void concurrentWritesAreNotHiddenByLookups(@TempDir File data) throws Exception {
+        final int keyCount = 8;
+        final int writes = 2_000;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ShardedDAO dao = new ShardedDAO(data.toPath(), DAOFactory.MAX_HEAP, 2, config(ROW_CACHE_SIZE))) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            for (int i = 0; i < keyCount; i++) {
+                keys.add(randomKey());
+            }
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        for (final ByteBuffer key : keys) {
+                            try {
+                                dao.get(key);
+                            } catch (NoSuchElementException e) {
+                                // Not written yet or removed
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (int i = 0; i < writes; i++) {
+                final ByteBuffer key = keys.get(i % keyCount);
+                if (i % 7 == 0) {
+                    dao.remove(key);
+                } else {
+                    dao.upsert(key, value(i));
+                }
+            }
+            writing.set(false);
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+
+            // The last write of every key wins over results cached by racing lookups
+            for (int i = writes - keyCount; i < writes; i++) {
+                final ByteBuffer key = keys.get(i % keyCount);
+                if (i % 7 == 0) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value(i), dao.get(key));
+                }
+            }
+            assertTrue(dao.getRowCache().getHits() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer value(final int version) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(version).flip();
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.TableFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for range scans of SSTables, which read files ahead.
+ */
+class SequentialScanTest extends TestBase {
+
+    /* Bigger than read-ahead window */
+    private static final int BIG_VALUE_LENGTH = 100 * 1024;
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        scansWhatWasWritten(data, TableFormat.CELL_OFFSETS.config().build());
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        scansWhatWasWritten(data, TableFormat.BLOCKS.config().blockCacheSize(0).build());
+    }
+
+    private static void scansWhatWasWritten(final File data, final Config config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = i % 100 == 0
+                        ? randomBuffer(BIG_VALUE_LENGTH)
+                        : randomBuffer(1 + ThreadLocalRandom.current().nextInt(100));
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer removed = randomKey();
+                dao.upsert(removed, randomValue());
+                dao.remove(removed);
+            }
+        }
+
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            assertSameRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer from = randomKey();
+                assertSameRecords(expected.tailMap(from, true), dao.iterator(from));
+            }
+
+            // The same through compaction
+            dao.compact();
+            assertSameRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    private static void assertSameRecords(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
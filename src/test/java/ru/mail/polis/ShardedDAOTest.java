@@ -0,0 +1,166 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link DAO} split into shards.
+ */
+class ShardedDAOTest extends TestBase {
+
+    private static final int SHARDS = 4;
+
+    @Test
+    void iteratesInOrderAcrossShards(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new ConcurrentSkipListMap<>();
+
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.upsert(ByteBuffer.allocate(0), ByteBuffer.allocate(0));
+            expected.put(ByteBuffer.allocate(0), ByteBuffer.allocate(0));
+
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+
+            final ByteBuffer from = randomKey();
+            final ByteBuffer to = randomKey();
+            if (from.compareTo(to) <= 0) {
+                assertSameContents(expected.subMap(from, true, to, false), dao.range(from, to));
+            } else {
+                assertSameContents(expected.subMap(to, true, from, false), dao.range(to, from));
+            }
+        }
+    }
+
+    @Test
+    void pointOperations(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            dao.upsert(removed, value);
+            dao.write(new WriteBatch().upsert(key, value).remove(removed));
+
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(removed, value);
+                assertEquals(value, snapshot.get(key));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(removed));
+            }
+            assertEquals(value, dao.get(removed));
+        }
+    }
+
+    @Test
+    void concurrentWrites(@TempDir File data) throws Exception {
+        final int threads = 4;
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new ConcurrentSkipListMap<>();
+
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 1_000; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            dao.compact();
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void alikeKeysAreSpread(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            // Keys share a prefix and differ in the last bytes only
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = key(String.format("user:%08d", i));
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+            assertSameContents(
+                    expected.subMap(key("user:000001"), key("user:000002")),
+                    dao.prefix(key("user:000001")));
+        }
+
+        // Every shard got about the same share of data
+        final long share = Files.directorySize(data) / SHARDS;
+        for (int i = 0; i < SHARDS; i++) {
+            final long size = Files.directorySize(new File(data, "shard_" + i));
+            assertTrue(size > share / 2 && size < share * 3 / 2, "Shard " + i + " has " + size + " of " + share);
+        }
+    }
+
+    @Test
+    void shardCountIsChecked(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, SHARDS)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+
+        assertThrows(IllegalStateException.class, () -> DAOFactory.create(data, SHARDS + 1));
+    }
+
+    private static ByteBuffer key(final String key) {
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void assertSameContents(
+            final Map<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
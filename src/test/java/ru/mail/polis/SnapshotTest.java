@@ -0,0 +1,182 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MutableTable;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link DAO#snapshot()}.
+ */
+class SnapshotTest extends TestBase {
+
+    @Test
+    void laterWritesAreInvisible(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer added = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.upsert(removed, value);
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(key, randomValue());
+                dao.remove(removed);
+                dao.upsert(added, value);
+
+                assertEquals(value, snapshot.get(key));
+                assertEquals(value, snapshot.get(removed));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+            }
+
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(added));
+        }
+    }
+
+    @Test
+    void survivesFlushAndCompaction(@TempDir File data) throws IOException {
+        survivesFlushAndCompaction(data, MutableTable.Implementation.ON_HEAP);
+    }
+
+    @Test
+    void survivesFlushAndCompactionOffHeap(@TempDir File data) throws IOException {
+        survivesFlushAndCompaction(data, MutableTable.Implementation.OFF_HEAP);
+    }
+
+    @Test
+    void getLooksUpTables(@TempDir File data) throws IOException {
+        final Config config = Config.builder().memTableSize(MEM_TABLE_SIZE).build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config);
+             Snapshot snapshot = dao.snapshot()) {
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.remove(key);
+            }
+            final ByteBuffer added = randomKey();
+            dao.upsert(added, randomValue());
+
+            // Point lookups go through Bloom filters of tables instead of merging ranges
+            final long checks = dao.getFilterStats().getChecks();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+            assertTrue(dao.getFilterStats().getChecks() > checks);
+        }
+    }
+
+    @Test
+    void batchIsSeenAtomically(@TempDir File data) throws Exception {
+        final ByteBuffer first = randomKey();
+        final ByteBuffer second = randomKey();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final ByteBuffer initial = randomValue();
+            dao.write(new WriteBatch().upsert(first, initial).upsert(second, initial));
+
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final Future<?> writer = executor.submit(() -> {
+                while (!done.get()) {
+                    final ByteBuffer value = randomValue();
+                    dao.write(new WriteBatch().upsert(first, value).upsert(second, value));
+                }
+                return null;
+            });
+
+            for (int i = 0; i < 1_000; i++) {
+                try (Snapshot snapshot = dao.snapshot()) {
+                    assertEquals(snapshot.get(first), snapshot.get(second));
+                }
+            }
+
+            done.set(true);
+            writer.get();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void closedSnapshot(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            final Snapshot snapshot = dao.snapshot();
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(ByteBuffer.allocate(0)));
+            assertThrows(IllegalStateException.class, () -> snapshot.get(randomKey()));
+        }
+    }
+
+    private static void survivesFlushAndCompaction(
+            final File data,
+            final MutableTable.Implementation implementation) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = Config.builder()
+                .memTableImplementation(implementation)
+                .memTableSize(MEM_TABLE_SIZE)
+                .build();
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                // Overwrite everything several times, so tables are flushed and compacted
+                for (int round = 0; round < 3; round++) {
+                    for (final ByteBuffer key : expected.keySet()) {
+                        dao.upsert(key, randomValue());
+                    }
+                }
+                dao.compact();
+
+                assertSameContents(expected, snapshot.iterator(ByteBuffer.allocate(0)));
+            }
+        }
+    }
+
+    private static void assertSameContents(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
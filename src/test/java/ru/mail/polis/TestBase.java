@@ -17,6 +17,8 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.TableFormat;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
@@ -29,6 +31,8 @@ import java.util.concurrent.ThreadLocalRandom;
 abstract class TestBase {
     static final int KEY_LENGTH = 16;
     private static final int VALUE_LENGTH = 1024;
+    /* Small enough for tests to flush many tables */
+    static final long MEM_TABLE_SIZE = 64 * 1024;
 
     @NotNull
     static ByteBuffer randomBuffer(final int length) {
@@ -48,6 +52,14 @@ abstract class TestBase {
         return randomBuffer(VALUE_LENGTH);
     }
 
+    /**
+     * Starts configuration of storage with small memtables and tables of the format.
+     */
+    @NotNull
+    static Config.Builder config(@NotNull final TableFormat format) {
+        return format.config().memTableSize(MEM_TABLE_SIZE);
+    }
+
     @NotNull
     static ByteBuffer join(
             @NotNull final ByteBuffer left,
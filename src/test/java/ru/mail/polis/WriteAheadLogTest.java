@@ -0,0 +1,135 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+import ru.mail.polis.pdaniil.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Recovery of writes which were not flushed before crash.
+ */
+class WriteAheadLogTest extends TestBase {
+
+    @Test
+    void recoverAlways(@TempDir File data) throws IOException {
+        recover(data, WriteAheadLog.SyncMode.ALWAYS);
+    }
+
+    @Test
+    void recoverPeriodic(@TempDir File data) throws IOException {
+        recover(data, WriteAheadLog.SyncMode.PERIODIC);
+    }
+
+    @Test
+    void recoverNone(@TempDir File data) throws IOException {
+        recover(data, WriteAheadLog.SyncMode.NONE);
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        // "Crash" without close
+        final DAO crashed = open(data, WriteAheadLog.SyncMode.NONE);
+        crashed.upsert(key, value);
+
+        // Half-written record at the end of the log
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith(".wal")) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.APPEND)) {
+                    channel.write(ByteBuffer.allocate(Integer.BYTES * 2).putInt(1024).putInt(42).flip());
+                    channel.write(randomBuffer(100));
+                }
+            }
+        }
+
+        try (DAO dao = open(data, WriteAheadLog.SyncMode.NONE)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void groupCommit(@TempDir File data) throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 100;
+
+        final DAO crashed = open(data, WriteAheadLog.SyncMode.ALWAYS);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Map<ByteBuffer, ByteBuffer>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                final Map<ByteBuffer, ByteBuffer> written = new HashMap<>();
+                for (int i = 0; i < keysPerThread; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    crashed.upsert(key, value);
+                    written.put(key, value);
+                }
+                return written;
+            }));
+        }
+
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (final Future<Map<ByteBuffer, ByteBuffer>> future : futures) {
+            expected.putAll(future.get());
+        }
+        executor.shutdown();
+
+        try (DAO dao = open(data, WriteAheadLog.SyncMode.ALWAYS)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static void recover(final File data, final WriteAheadLog.SyncMode syncMode) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        try (DAO dao = open(data, syncMode)) {
+            dao.upsert(removed, randomValue());
+        }
+
+        // "Crash" without close
+        final DAO crashed = open(data, syncMode);
+        crashed.upsert(key, value);
+        crashed.remove(removed);
+
+        try (DAO dao = open(data, syncMode)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        // Recovered data is persisted
+        try (DAO dao = open(data, syncMode)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    private static DAO open(final File data, final WriteAheadLog.SyncMode syncMode) throws IOException {
+        final Path path = data.toPath();
+        return new MyDAO(path, DAOFactory.MAX_HEAP, Config.builder().syncMode(syncMode).build());
+    }
+}
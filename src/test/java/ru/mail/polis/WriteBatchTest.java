@@ -0,0 +1,144 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link DAO#write(WriteBatch)}.
+ */
+class WriteBatchTest extends TestBase {
+
+    @Test
+    void putsAndRemoves(@TempDir File data) throws IOException {
+        final ByteBuffer removed = randomKey();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            keys.add(key);
+            batch.upsert(key, join(key, key));
+        }
+        batch.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+            dao.write(batch);
+
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, key), dao.get(key));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, key), dao.get(key));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void lastOperationWins(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer resurrected = randomKey();
+
+        final WriteBatch batch = new WriteBatch()
+                .upsert(key, randomValue())
+                .upsert(key, value)
+                .remove(resurrected)
+                .upsert(resurrected, value);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(batch);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(resurrected));
+        }
+    }
+
+    @Test
+    void defaultImplementation(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, value);
+
+            // Wrapper which relies on DAO defaults
+            final DAO plain = new DAO() {
+                @Override
+                public Iterator<Record> iterator(final ByteBuffer from) throws IOException {
+                    return dao.iterator(from);
+                }
+
+                @Override
+                public void upsert(final ByteBuffer k, final ByteBuffer v) throws IOException {
+                    dao.upsert(k, v);
+                }
+
+                @Override
+                public void remove(final ByteBuffer k) throws IOException {
+                    dao.remove(k);
+                }
+
+                @Override
+                public void close() {
+                    // Not owned
+                }
+            };
+            plain.write(new WriteBatch().upsert(key, value).remove(removed));
+
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void tornBatchIsNotApplied(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer value = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 10; i++) {
+            final ByteBuffer key = randomKey();
+            keys.add(key);
+            batch.upsert(key, value);
+        }
+
+        // "Crash" without close
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(single, value);
+        crashed.write(batch);
+
+        // Lose the tail of the batch record
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith(".wal")) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(channel.size() - 1);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(single));
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+}
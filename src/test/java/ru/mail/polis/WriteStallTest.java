@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pdaniil.Config;
+import ru.mail.polis.pdaniil.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background compaction and throttling of writes.
+ */
+class WriteStallTest extends TestBase {
+
+    @Test
+    void tableCountIsBounded(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .compactionTrigger(2)
+                .tableCountThresholds(3, 4)
+                .maxWriteDelayMicros(10)
+                .build();
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 3_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+                assertTrue(tableFiles(data) <= 4);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertSameContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void writesAreSlowedDown(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .compactionTrigger(4)
+                .tableCountThresholds(2, 8)
+                .maxWriteDelayMicros(10)
+                .build();
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 3_000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            assertTrue(dao.getWriteStats().getDelayedWrites() > 0);
+            assertTrue(dao.getWriteStats().getDelayedNanos() > 0);
+        }
+    }
+
+    @Test
+    void readerSurvivesCompaction(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .build();
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            dao.compact();
+            assertSameContents(expected, iterator);
+        }
+    }
+
+    @Test
+    void invalidThresholds() {
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().tableCountThresholds(8, 4));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> Config.builder().compactionTrigger(8).tableCountThresholds(4, 8).build());
+    }
+
+    private static int tableFiles(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith(".dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertSameContents(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,168 @@
+package ru.mail.polis.pdaniil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for memtables frozen while the flusher is held back or fails.
+ */
+class FlushQueueTest {
+
+    private static final long MAX_HEAP = 128 * 1024 * 1024;
+    private static final long MEM_TABLE_SIZE = 4 * 1024;
+    private static final int MAX_PENDING_FLUSHES = 2;
+    private static final int KEYS = 1_000;
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @Test
+    void writersStallAtMaxPendingFlushes(@TempDir File data) throws Exception {
+        try (MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP, config())) {
+            final CountDownLatch release = new CountDownLatch(1);
+            dao.submitToFlusher(() -> awaitUninterruptibly(release));
+
+            final AtomicInteger written = new AtomicInteger();
+            final AtomicReference<Exception> failure = new AtomicReference<>();
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < KEYS; i++) {
+                        dao.upsert(key(i), value(i));
+                        written.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+
+            assertTimeoutPreemptively(TIMEOUT, () -> {
+                while (writer.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            });
+            assertEquals(MAX_PENDING_FLUSHES, dao.getPendingFlushes());
+            assertTrue(written.get() < KEYS);
+
+            // Keys of frozen tables are read from memory
+            for (int i = 0; i < written.get(); i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+
+            release.countDown();
+            writer.join(TIMEOUT.toMillis());
+            assertNull(failure.get());
+            assertEquals(KEYS, written.get());
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void compactionDoesNotHoldFlushes(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .maxPendingFlushes(MAX_PENDING_FLUSHES)
+                .compactionTrigger(2)
+                .tableCountThresholds(100, 200)
+                .build();
+        try (MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP, config)) {
+            final CountDownLatch release = new CountDownLatch(1);
+            dao.submitToCompactor(() -> awaitUninterruptibly(release));
+
+            try {
+                // Many more tables than the flush queue holds are flushed while compaction waits
+                assertTimeoutPreemptively(TIMEOUT, () -> {
+                    for (int i = 0; i < KEYS; i++) {
+                        dao.upsert(key(i), value(i));
+                    }
+                });
+            } finally {
+                release.countDown();
+            }
+
+            dao.compact();
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void failedFlushIsReported(@TempDir File data) throws IOException {
+        // The first memtable can't be written over a non-empty directory
+        final Path blocker = data.toPath().resolve(SSTable.TABLE_FILE_PREFIX + 1 + SSTable.TABLE_TMP_FILE_SUFFIX);
+        Files.createDirectory(blocker);
+        Files.createFile(blocker.resolve("file"));
+
+        final AtomicInteger written = new AtomicInteger();
+        final MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP, config());
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertThrows(IOException.class, () -> {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(key(i), value(i));
+                    written.incrementAndGet();
+                }
+            });
+            assertThrows(IOException.class, dao::compact);
+            assertThrows(IOException.class, dao::close);
+        });
+
+        // The table which failed to flush is replayed from the write-ahead log
+        Files.delete(blocker.resolve("file"));
+        Files.delete(blocker);
+        try (MyDAO reopened = new MyDAO(data.toPath(), MAX_HEAP, config())) {
+            for (int i = 0; i < written.get(); i++) {
+                assertEquals(value(i), reopened.get(key(i)));
+            }
+        }
+    }
+
+    private static Config config() {
+        return Config.builder()
+                .memTableSize(MEM_TABLE_SIZE)
+                .maxPendingFlushes(MAX_PENDING_FLUSHES)
+                .build();
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key%08d", key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int key) {
+        final ByteBuffer value = ByteBuffer.allocate(100);
+        value.putInt(0, key);
+        return value;
+    }
+}
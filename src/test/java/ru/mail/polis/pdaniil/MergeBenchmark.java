@@ -0,0 +1,108 @@
+package ru.mail.polis.pdaniil;
+
+import com.google.common.collect.Iterators;
+import ru.mail.polis.Iters;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Compares {@link MergeIterator} with the former Guava pipeline
+ * of {@code mergeSorted}, {@code collapseEquals} and {@code filter}.
+ *
+ * <p>Run with {@code java -Xmx1g -cp <classpath> ru.mail.polis.pdaniil.MergeBenchmark}.</p>
+ */
+public final class MergeBenchmark {
+
+    private static final int CELLS = 1_000_000;
+    private static final int KEY_LENGTH = 16;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private MergeBenchmark() {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     */
+    public static void main(final String[] args) {
+        for (final int tableCount : new int[]{2, 10, 100}) {
+            final List<List<Cell>> tables = generate(tableCount);
+
+            final long pipeline = measure(tables, MergeBenchmark::pipeline);
+            final long merge = measure(tables, TableSet::merge);
+            System.out.printf("%3d tables: pipeline %5.1f ns/cell, merge iterator %5.1f ns/cell%n",
+                    tableCount,
+                    (double) pipeline / CELLS,
+                    (double) merge / CELLS);
+        }
+    }
+
+    private static Iterator<Cell> pipeline(final List<Iterator<Cell>> iterators) {
+        final Iterator<Cell> merged = Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+        final Iterator<Cell> collapsed = Iters.collapseEquals(merged, Cell::getKey);
+        return Iterators.filter(collapsed, cell -> !cell.getValue().isRemoved());
+    }
+
+    /**
+     * Spreads cells over tables, keys of different tables overlap and some cells are tombstones.
+     * Cells of a table are allocated in key order like SSTables decode them.
+     */
+    private static List<List<Cell>> generate(final int tableCount) {
+        final Random random = new Random(tableCount);
+        final ByteBuffer value = ByteBuffer.allocate(8);
+        final List<List<Cell>> tables = new ArrayList<>();
+        for (int table = 0; table < tableCount; table++) {
+            // Half of the key space, so keys repeat across tables
+            final long[] keys = random.longs(CELLS / tableCount, 0, CELLS / 2).sorted().distinct().toArray();
+            final List<Cell> cells = new ArrayList<>();
+            for (final long key : keys) {
+                final ByteBuffer keyBuffer = ByteBuffer.allocate(KEY_LENGTH);
+                keyBuffer.putLong(key).putLong(0).flip();
+                final long timeStamp = random.nextLong();
+                cells.add(Cell.create(
+                        keyBuffer,
+                        random.nextInt(10) == 0 ? Value.tombstone(timeStamp) : Value.of(timeStamp, value),
+                        table));
+            }
+            tables.add(cells);
+        }
+        return tables;
+    }
+
+    private static long measure(
+            final List<List<Cell>> tables,
+            final Function<List<Iterator<Cell>>, Iterator<Cell>> merger) {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final List<Iterator<Cell>> iterators = new ArrayList<>();
+            for (final List<Cell> table : tables) {
+                iterators.add(table.iterator());
+            }
+
+            final long start = System.nanoTime();
+            final Iterator<Cell> merged = merger.apply(iterators);
+            while (merged.hasNext()) {
+                checksum += merged.next().getValue().getTimeStamp();
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (checksum == 42) {
+            System.out.println("Unlikely checksum");
+        }
+        return best;
+    }
+}
@@ -0,0 +1,67 @@
+package ru.mail.polis.pdaniil;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link OffHeapMemTable} which outgrows its first slab.
+ */
+class OffHeapSlabsTest {
+
+    // Size hint below the minimum, so slabs are the smallest ones
+    private static final long SIZE_HINT = 1024;
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int KEYS = 20_000;
+
+    @Test
+    void manySlabs() {
+        final OffHeapMemTable table = new OffHeapMemTable(1, SIZE_HINT);
+        for (int i = 0; i < KEYS; i++) {
+            table.upsert(key(i), value(i, 100), i + 1);
+        }
+        assertTrue(table.getSize() > 10L * SLAB_SIZE);
+        assertEquals(KEYS, table.getKeyCount());
+
+        // Nodes of every slab are linked in key order
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < KEYS; i++) {
+            final Cell cell = cells.next();
+            assertEquals(key(i), cell.getKey());
+            assertEquals(value(i, 100), cell.getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+    }
+
+    @Test
+    void recordsBiggerThanSlab() {
+        final OffHeapMemTable table = new OffHeapMemTable(1, SIZE_HINT);
+        for (int i = 0; i < 10; i++) {
+            table.upsert(key(i), value(i, 3 * SLAB_SIZE), i + 1);
+            table.upsert(key(i + 10), value(i, 100), i + 1);
+        }
+        assertTrue(table.getSize() > 30L * SLAB_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(value(i, 3 * SLAB_SIZE), table.get(key(i), Long.MAX_VALUE).getValue().getData());
+            assertEquals(value(i, 100), table.get(key(i + 10), Long.MAX_VALUE).getValue().getData());
+        }
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key%08d", key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int key, final int size) {
+        final ByteBuffer value = ByteBuffer.allocate(size);
+        value.putInt(0, key);
+        value.putInt(size - Integer.BYTES, key);
+        return value;
+    }
+}
@@ -0,0 +1,131 @@
+package ru.mail.polis.pdaniil;
+
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Compares full scan through {@link MyDAO#iterator(ByteBuffer)} with parallel streams
+ * of {@link MyDAO#rangeStream(ByteBuffer, ByteBuffer)} on pools of 4 to 16 threads.
+ *
+ * <p>Run with {@code java -Xmx1g -cp <classpath> ru.mail.polis.pdaniil.ParallelScanBenchmark}.
+ * Parts are sized for the common pool, so set {@code -Djava.util.concurrent.ForkJoinPool.common.parallelism}
+ * to the largest pool on machines with fewer cores.</p>
+ */
+public final class ParallelScanBenchmark {
+
+    private static final int RECORDS = 1_000_000;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 100;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final ByteBuffer MIN_KEY = ByteBuffer.allocate(0);
+
+    private ParallelScanBenchmark() {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     * @throws Exception if unable to write or read the storage
+     */
+    public static void main(final String[] args) throws Exception {
+        final Path dir = Files.createTempDirectory("scan");
+        try (MyDAO dao = new MyDAO(dir, Runtime.getRuntime().maxMemory())) {
+            fill(dao);
+            dao.compact();
+
+            final long sequential = measure(() -> scan(dao));
+            System.out.printf("sequential: %6.1f ns/record%n", (double) sequential / RECORDS);
+            for (final int threads : new int[]{1, 4, 8, 16}) {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    final long parallel = measure(() -> pool.submit(() -> parallelScan(dao)).get());
+                    System.out.printf("%2d threads: %6.1f ns/record, speedup %4.1f%n",
+                            threads,
+                            (double) parallel / RECORDS,
+                            (double) sequential / parallel);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void fill(final MyDAO dao) throws IOException {
+        final Random random = new Random(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            // Memtable keeps the buffers, so they are not reused
+            final byte[] key = new byte[KEY_LENGTH];
+            final byte[] value = new byte[VALUE_LENGTH];
+            random.nextBytes(key);
+            random.nextBytes(value);
+            dao.upsert(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+        }
+    }
+
+    private static long scan(final MyDAO dao) throws IOException {
+        long checksum = 0;
+        final Iterator<Record> records = dao.iterator(MIN_KEY);
+        while (records.hasNext()) {
+            checksum += checksum(records.next());
+        }
+        return checksum;
+    }
+
+    private static long parallelScan(final MyDAO dao) throws IOException {
+        try (Stream<Record> records = dao.rangeStream(MIN_KEY, null)) {
+            return records.parallel().mapToLong(ParallelScanBenchmark::checksum).sum();
+        }
+    }
+
+    /**
+     * Touches every byte, like export of records does.
+     */
+    private static long checksum(final Record record) {
+        final ByteBuffer value = record.getValue();
+        long sum = 0;
+        for (int i = value.position(); i < value.limit(); i++) {
+            sum += value.get(i);
+        }
+        return sum;
+    }
+
+    private static long measure(final Scan scan) throws IOException, InterruptedException, ExecutionException {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long start = System.nanoTime();
+            checksum += scan.run();
+            final long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (checksum == 42) {
+            System.out.println("Unlikely checksum");
+        }
+        return best;
+    }
+
+    @FunctionalInterface
+    private interface Scan {
+
+        long run() throws IOException, InterruptedException, ExecutionException;
+    }
+}
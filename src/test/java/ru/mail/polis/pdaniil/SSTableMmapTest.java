@@ -0,0 +1,133 @@
+package ru.mail.polis.pdaniil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests for tables mapped in several segments, which are small here so cells and blocks cross their borders
+ * like they do in tables bigger than 2 GB.
+ */
+class SSTableMmapTest {
+
+    private static final int CELLS = 5_000;
+
+    @Test
+    void cellOffsets(@TempDir File data) throws IOException {
+        readsAcrossSegments(data.toPath(), TableFormat.CELL_OFFSETS.config().build());
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        readsAcrossSegments(data.toPath(), TableFormat.BLOCKS.config().build());
+    }
+
+    @Test
+    void valuesBiggerThanSegment(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        final Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            cells.add(cell(i, randomBytes(random, 10_000)));
+        }
+        final Path file = SSTable.writeTable(
+                data.toPath(),
+                cells.iterator(),
+                cells.size(),
+                1,
+                TableFormat.CELL_OFFSETS.config().build());
+
+        final SSTableMmap table = new SSTableMmap(file, 4096);
+        try {
+            assertSameCells(cells.iterator(), table.iterator(ByteBuffer.allocate(0), null));
+        } finally {
+            table.close();
+        }
+    }
+
+    private static void readsAcrossSegments(final Path dir, final Config config) throws IOException {
+        final List<Cell> cells = generate();
+        final Path file = SSTable.writeTable(dir, cells.iterator(), cells.size(), 1, config);
+
+        for (final int segmentSize : new int[]{64, 4096, MappedSegments.DEFAULT_SEGMENT_SIZE}) {
+            final SSTableMmap table = new SSTableMmap(file, segmentSize);
+            try {
+                assertSameCells(cells.iterator(), table.iterator(ByteBuffer.allocate(0), null));
+                assertSameCells(cells.subList(CELLS / 3, CELLS / 2).iterator(),
+                        table.iterator(cells.get(CELLS / 3).getKey(), cells.get(CELLS / 2).getKey()));
+                for (int i = 0; i < CELLS; i += 7) {
+                    final Cell cell = cells.get(i);
+                    assertSameCell(cell, table.get(cell.getKey()));
+                }
+                assertNull(table.get(key(CELLS * 2 + 1)));
+
+                final List<ByteBuffer> keys = new ArrayList<>();
+                for (int i = 0; i < CELLS; i += 3) {
+                    keys.add(cells.get(i).getKey());
+                }
+                final Cell[] found = table.getAll(keys);
+                for (int i = 0; i < keys.size(); i++) {
+                    assertSameCell(cells.get(i * 3), found[i]);
+                }
+            } finally {
+                table.close();
+            }
+        }
+    }
+
+    /**
+     * Cells of different sizes and some tombstones, so borders of segments fall anywhere in cells.
+     */
+    private static List<Cell> generate() {
+        final Random random = new Random(CELLS);
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < CELLS; i++) {
+            cells.add(i % 10 == 0
+                    ? Cell.create(key(i * 2), Value.tombstone(i), 1)
+                    : cell(i * 2, randomBytes(random, 1 + random.nextInt(200))));
+        }
+        return cells;
+    }
+
+    private static Cell cell(final int key, final ByteBuffer value) {
+        return Cell.create(key(key), Value.of(key, value), 1);
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key%08d", key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer randomBytes(final Random random, final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void assertSameCells(final Iterator<Cell> expected, final Iterator<Cell> actual) {
+        while (expected.hasNext()) {
+            assertSameCell(expected.next(), actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static void assertSameCell(final Cell expected, final Cell actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getValue().getTimeStamp(), actual.getValue().getTimeStamp());
+        assertEquals(expected.getValue().isRemoved(), actual.getValue().isRemoved());
+        if (!expected.getValue().isRemoved()) {
+            assertEquals(expected.getValue().getData(), actual.getValue().getData());
+        }
+    }
+}
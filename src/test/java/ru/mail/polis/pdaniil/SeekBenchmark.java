@@ -0,0 +1,152 @@
+package ru.mail.polis.pdaniil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares seeks in tables with offset of every cell by packed key prefixes with the former binary search
+ * which read the key of every probed row, for both {@link SSTableMmap} and {@link SSTableFileChannel}.
+ *
+ * <p>Run with {@code java -Xmx1g -cp <classpath> ru.mail.polis.pdaniil.SeekBenchmark}.</p>
+ */
+public final class SeekBenchmark {
+
+    private static final int CELLS = 1_000_000;
+    private static final int SEEKS = 200_000;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 32;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    private SeekBenchmark() {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     * @throws IOException if unable to write or read the table
+     */
+    public static void main(final String[] args) throws IOException {
+        final Path dir = Files.createTempDirectory("seek");
+        try {
+            final Path file = SSTable.writeTable(dir, generate(), CELLS, 0, Config.builder().blockSize(0).build());
+            final ByteBuffer[] keys = seekKeys();
+
+            final SSTable mmap = new SSTableMmap(file);
+            final SSTable fileChannel = new SSTableFileChannel(file, new BlockCache(0));
+            try {
+                for (final SSTable table : new SSTable[]{mmap, fileChannel}) {
+                    final long fullKeys = measure(table, keys, SeekBenchmark::fullKeySearch);
+                    final long prefixes = measure(table, keys, SeekBenchmark::prefixSearch);
+                    System.out.printf("%-18s full keys %6.1f ns/seek, prefixes %6.1f ns/seek%n",
+                            table.getClass().getSimpleName(),
+                            (double) fullKeys / SEEKS,
+                            (double) prefixes / SEEKS);
+                }
+            } finally {
+                mmap.close();
+                fileChannel.close();
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Keys with a common first half, like keys of one tenant or one table of a bigger store,
+     * so both the prefixes and whole keys are compared.
+     */
+    private static Iterator<Cell> generate() {
+        final ByteBuffer value = ByteBuffer.allocate(VALUE_LENGTH);
+        return new Iterator<Cell>() {
+            private int cell;
+
+            @Override
+            public boolean hasNext() {
+                return cell < CELLS;
+            }
+
+            @Override
+            public Cell next() {
+                final long key = 2L * cell++;
+                return Cell.create(key(key), Value.of(key, value), 0);
+            }
+        };
+    }
+
+    private static ByteBuffer[] seekKeys() {
+        final Random random = new Random(SEEKS);
+        final ByteBuffer[] keys = new ByteBuffer[SEEKS];
+        for (int i = 0; i < SEEKS; i++) {
+            // Both written and absent keys
+            keys[i] = key(random.nextInt(2 * CELLS));
+        }
+        return keys;
+    }
+
+    private static ByteBuffer key(final long key) {
+        final ByteBuffer buffer = ByteBuffer.allocate(KEY_LENGTH);
+        // Half of keys share the first 8 bytes with their neighbours
+        buffer.putLong(key >>> 1).putLong(key).flip();
+        return buffer;
+    }
+
+    private static int prefixSearch(final SSTable table, final ByteBuffer key) throws IOException {
+        return table.findStartIndex(key, 0, table.getRowCount() - 1);
+    }
+
+    /**
+     * The binary search before prefixes were stored.
+     */
+    private static int fullKeySearch(final SSTable table, final ByteBuffer key) throws IOException {
+        int low = 0;
+        int high = table.getRowCount() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int compare = table.parseKey(mid).compareTo(key);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    private static long measure(final SSTable table, final ByteBuffer[] keys, final Seek seek) throws IOException {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (final ByteBuffer key : keys) {
+                checksum += seek.find(table, key);
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (checksum == 42) {
+            System.out.println("Unlikely checksum");
+        }
+        return best;
+    }
+
+    @FunctionalInterface
+    private interface Seek {
+
+        int find(SSTable table, ByteBuffer key) throws IOException;
+    }
+}
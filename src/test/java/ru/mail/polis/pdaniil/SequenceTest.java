@@ -0,0 +1,100 @@
+package ru.mail.polis.pdaniil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for sequence numbers which continue from the ones recorded by tables.
+ */
+class SequenceTest {
+
+    private static final long MAX_HEAP = 128 * 1024 * 1024;
+    private static final int KEYS = 100;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void continuesAfterRestart(@TempDir File data) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            write(data, round);
+        }
+
+        // Every close flushes one table, numbers of a new storage start from zero
+        final List<Long> maxTimeStamps = maxTimeStamps(data.toPath());
+        assertEquals(ROUNDS, maxTimeStamps.size());
+        for (int round = 0; round < ROUNDS; round++) {
+            assertEquals((round + 1L) * KEYS, (long) maxTimeStamps.get(round));
+        }
+        assertNewest(data, ROUNDS - 1);
+    }
+
+    @Test
+    void continuesAfterCompaction(@TempDir File data) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            write(data, round);
+        }
+        try (MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP)) {
+            dao.compact();
+        }
+        assertEquals(List.of((long) ROUNDS * KEYS), maxTimeStamps(data.toPath()));
+
+        write(data, ROUNDS);
+        assertNewest(data, ROUNDS);
+    }
+
+    private static void write(final File data, final int round) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(round));
+            }
+        }
+    }
+
+    private static void assertNewest(final File data, final int round) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), MAX_HEAP)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(round), dao.get(key(i)));
+            }
+        }
+    }
+
+    private static List<Long> maxTimeStamps(final Path dir) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(file -> SSTable.checkFileName(file.getFileName().toString()))
+                    .sorted(Comparator.comparingLong(file -> SSTable.getVersionFromName(file.getFileName().toString())))
+                    .collect(Collectors.toList());
+        }
+        final List<Long> result = new ArrayList<>();
+        for (final Path file : files) {
+            final SSTable table = new SSTableMmap(file);
+            try {
+                result.add(table.getMaxTimeStamp());
+            } finally {
+                table.close();
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key%08d", key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer value(final int round) {
+        return ByteBuffer.wrap(("value" + round).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,24 @@
+package ru.mail.polis.pdaniil;
+
+/**
+ * Ways SSTables find their cells, tests of reads go through each of them.
+ */
+public enum TableFormat {
+    /** Offsets of every cell are written after the cells. */
+    CELL_OFFSETS(0),
+    /** Cells are grouped into blocks of the default size, found by index of the blocks. */
+    BLOCKS(Config.DEFAULT.getBlockSize());
+
+    private final int blockSize;
+
+    TableFormat(final int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Starts configuration of tables of this format.
+     */
+    public Config.Builder config() {
+        return Config.builder().blockSize(blockSize);
+    }
+}
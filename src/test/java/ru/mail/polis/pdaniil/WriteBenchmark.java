@@ -0,0 +1,85 @@
+package ru.mail.polis.pdaniil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures throughput of {@link MyDAO#upsert(ByteBuffer, ByteBuffer)} from 1 writer thread
+ * up to as many as there are processors.
+ *
+ * <p>Run with {@code java -Xmx1g -cp <classpath> ru.mail.polis.pdaniil.WriteBenchmark}.</p>
+ */
+public final class WriteBenchmark {
+
+    private static final int OPS_PER_RUN = 1 << 20;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 64;
+
+    private WriteBenchmark() {
+        // Not instantiable
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args ignored
+     * @throws Exception if unable to write the storage
+     */
+    public static void main(final String[] args) throws Exception {
+        final ByteBuffer value = ByteBuffer.allocate(VALUE_LENGTH);
+        final int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final Path dir = Files.createTempDirectory("write");
+            try (MyDAO dao = new MyDAO(dir, Runtime.getRuntime().maxMemory())) {
+                final long elapsed = measure(dao, threads, value);
+                System.out.printf("%2d writer thread(s): %,d ops/s%n",
+                        threads,
+                        OPS_PER_RUN * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            } finally {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private static long measure(final MyDAO dao, final int threads, final ByteBuffer value) throws Exception {
+        final int perThread = OPS_PER_RUN / threads;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> write(dao, perThread, value)));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Void write(final MyDAO dao, final int count, final ByteBuffer value) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            // Memtable keeps the buffers, so they are not reused
+            final byte[] key = new byte[KEY_LENGTH];
+            random.nextBytes(key);
+            dao.upsert(ByteBuffer.wrap(key), value.duplicate());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,102 @@
+package ru.mail.polis.pdaniil;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for tables written with per-cell data spilled to temporary files and Bloom filters sized up front.
+ */
+class WriteTableTest {
+
+    private static final int CELLS = 20_000;
+
+    @Test
+    void cellOffsetsAreSpilled(@TempDir File data) throws IOException {
+        final List<Cell> cells = generate();
+        final Path file = SSTable.writeTable(
+                data.toPath(),
+                cells.iterator(),
+                cells.size(),
+                1,
+                TableFormat.CELL_OFFSETS.config().build());
+
+        // Temporary files are gone
+        assertEquals(1, data.list().length);
+        assertSameCells(file, cells);
+    }
+
+    @Test
+    void filterOfUnderestimatedCount(@TempDir File data) throws IOException {
+        final List<Cell> cells = generate();
+        final Path file = SSTable.writeTable(data.toPath(), cells.iterator(), 10, 1, Config.builder().build());
+        // The filter is overfull, but it never rules out written keys
+        assertSameCells(file, cells);
+    }
+
+    @Test
+    void filterOfOverestimatedCount(@TempDir File data) throws IOException {
+        final List<Cell> cells = generate();
+        final Path file = SSTable.writeTable(
+                data.toPath(),
+                cells.iterator(),
+                10L * cells.size(),
+                1,
+                Config.builder().build());
+        assertSameCells(file, cells);
+
+        final SSTable table = new SSTableMmap(file);
+        try {
+            int positives = 0;
+            for (int i = 0; i < CELLS; i++) {
+                if (table.mightContain(BloomFilter.hash(key(2 * i + 1)))) {
+                    positives++;
+                }
+            }
+            assertTrue(positives < CELLS / 100);
+        } finally {
+            table.close();
+        }
+    }
+
+    private static void assertSameCells(final Path file, final List<Cell> cells) throws IOException {
+        final SSTable table = new SSTableMmap(file);
+        try {
+            final Iterator<Cell> actual = table.iterator(ByteBuffer.allocate(0));
+            for (final Cell cell : cells) {
+                assertTrue(table.mightContain(BloomFilter.hash(cell.getKey())));
+                final Cell found = actual.next();
+                assertEquals(cell.getKey(), found.getKey());
+                assertEquals(cell.getValue().getData(), found.getValue().getData());
+            }
+            assertFalse(actual.hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    private static List<Cell> generate() {
+        final List<Cell> cells = new ArrayList<>(CELLS);
+        for (int i = 0; i < CELLS; i++) {
+            final ByteBuffer value = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            cells.add(Cell.create(key(2 * i), Value.of(i, value), 1));
+        }
+        return cells;
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key%08d", key).getBytes(StandardCharsets.US_ASCII));
+    }
+}